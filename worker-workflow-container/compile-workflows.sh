@@ -0,0 +1,33 @@
+#!/bin/bash
+#
+# Copyright 2017-2024 Open Text.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+
+####################################################
+# Compiles the workflows added to the image into a workflow bundle. Run from the Dockerfile of an image that adds workflows,
+# so that invalid workflows fail the image build, and point CAF_WORKFLOW_WORKER_WORKFLOW_BUNDLE_PATH at the bundle.
+#
+# Usage: compile-workflows.sh [workflows directory] [bundle file]
+####################################################
+workflowsDirectory="${1:-/maven/workflows}"
+bundleFile="${2:-/maven/workflows.bundle.json}"
+
+cd /maven
+exec java -Dpolyglot.engine.WarnInterpreterOnly=false \
+    -cp "*" \
+    com.github.cafdataprocessing.workflow.WorkflowBundleCompiler \
+    "$workflowsDirectory" \
+    "$bundleFile"
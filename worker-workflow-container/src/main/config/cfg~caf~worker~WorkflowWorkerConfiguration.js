@@ -16,5 +16,29 @@
 ({
     contextScriptFilePath: getenv("CAF_WORKFLOW_WORKER_CONTEXT_JAVASCRIPT_PATH") || undefined,
     workflowsDirectory: getenv("CAF_WORKFLOW_WORKER_WORKFLOWS_DIRECTORY") || undefined,
-    settingsServiceUrl: getenv("CAF_SETTINGS_SERVICE_URL") || undefined
+    settingsServiceUrl: getenv("CAF_SETTINGS_SERVICE_URL") || undefined,
+    cacheCompiledWorkflowScripts: getenv("CAF_WORKFLOW_WORKER_CACHE_COMPILED_WORKFLOW_SCRIPTS") || undefined,
+    settingsCacheMaxEntries: getenv("CAF_WORKFLOW_WORKER_SETTINGS_CACHE_MAX_ENTRIES") || undefined,
+    settingsCacheExpirationSeconds: getenv("CAF_WORKFLOW_WORKER_SETTINGS_CACHE_EXPIRATION_SECONDS") || undefined,
+    settingsServiceLookupThreads: getenv("CAF_WORKFLOW_WORKER_SETTINGS_SERVICE_LOOKUP_THREADS") || undefined,
+    settingsCacheRefreshAheadSeconds: getenv("CAF_WORKFLOW_WORKER_SETTINGS_CACHE_REFRESH_AHEAD_SECONDS") || undefined,
+    settingsNotFoundCacheExpirationSeconds: getenv("CAF_WORKFLOW_WORKER_SETTINGS_NOT_FOUND_CACHE_EXPIRATION_SECONDS") || undefined,
+    settingsServiceCircuitBreakerFailureThreshold: getenv("CAF_WORKFLOW_WORKER_SETTINGS_SERVICE_CIRCUIT_BREAKER_FAILURE_THRESHOLD") || undefined,
+    settingsServiceCircuitBreakerOpenSeconds: getenv("CAF_WORKFLOW_WORKER_SETTINGS_SERVICE_CIRCUIT_BREAKER_OPEN_SECONDS") || undefined,
+    settingsServiceMaxStaleSeconds: getenv("CAF_WORKFLOW_WORKER_SETTINGS_SERVICE_MAX_STALE_SECONDS") || undefined,
+    settingsServiceConnectTimeoutSeconds: getenv("CAF_WORKFLOW_WORKER_SETTINGS_SERVICE_CONNECT_TIMEOUT_SECONDS") || undefined,
+    settingsServiceReadTimeoutSeconds: getenv("CAF_WORKFLOW_WORKER_SETTINGS_SERVICE_READ_TIMEOUT_SECONDS") || undefined,
+    settingsServiceCallTimeoutSeconds: getenv("CAF_WORKFLOW_WORKER_SETTINGS_SERVICE_CALL_TIMEOUT_SECONDS") || undefined,
+    settingsServiceMaxIdleConnections: getenv("CAF_WORKFLOW_WORKER_SETTINGS_SERVICE_MAX_IDLE_CONNECTIONS") || undefined,
+    settingsServiceKeepAliveSeconds: getenv("CAF_WORKFLOW_WORKER_SETTINGS_SERVICE_KEEP_ALIVE_SECONDS") || undefined,
+    settingsServiceCacheSizeBytes: getenv("CAF_WORKFLOW_WORKER_SETTINGS_SERVICE_CACHE_SIZE_BYTES") || undefined,
+    settingsServiceCacheDirectory: getenv("CAF_WORKFLOW_WORKER_SETTINGS_SERVICE_CACHE_DIRECTORY") || undefined,
+    settingsServiceHealthCheckIntervalSeconds: getenv("CAF_WORKFLOW_WORKER_SETTINGS_SERVICE_HEALTH_CHECK_INTERVAL_SECONDS") || undefined,
+    reloadWorkflows: getenv("CAF_WORKFLOW_WORKER_RELOAD_WORKFLOWS") || undefined,
+    workflowLoadThreads: getenv("CAF_WORKFLOW_WORKER_WORKFLOW_LOAD_THREADS") || undefined,
+    lazyWorkflowLoading: getenv("CAF_WORKFLOW_WORKER_LAZY_WORKFLOW_LOADING") || undefined,
+    workflowCacheMaxEntries: getenv("CAF_WORKFLOW_WORKER_WORKFLOW_CACHE_MAX_ENTRIES") || undefined,
+    workflowBundlePath: getenv("CAF_WORKFLOW_WORKER_WORKFLOW_BUNDLE_PATH") || undefined,
+    compiledWorkflowScriptCacheMaxEntries: getenv("CAF_WORKFLOW_WORKER_COMPILED_WORKFLOW_SCRIPT_CACHE_MAX_ENTRIES") || undefined,
+    compiledWorkflowScriptContextsPerWorkflow: getenv("CAF_WORKFLOW_WORKER_COMPILED_WORKFLOW_SCRIPT_CONTEXTS_PER_WORKFLOW") || undefined
 });
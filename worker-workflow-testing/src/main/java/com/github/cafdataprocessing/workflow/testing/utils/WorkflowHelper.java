@@ -42,6 +42,7 @@ import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Predicate;
 import javax.script.Invocable;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
@@ -88,6 +89,29 @@ public class WorkflowHelper
         }
     }
 
+    /**
+     * Utility method to create a Javascript engine with a predefined set of actions and the workflow-control.js loaded, in which the
+     * WorkflowFunctions class cannot be looked up. This is the case in the workers that documents are routed to after the workflow
+     * worker, so the Javascript implementations of the field conditions are used.
+     *
+     * @return an Invocable Javascript engine
+     * @throws IOException
+     * @throws ScriptException
+     */
+    public static Invocable createInvocableJavascriptEngineWithoutWorkflowFunctions() throws IOException, ScriptException
+    {
+        final ScriptEngine graalJs = getScriptEngine(
+            className -> !"com.github.cafdataprocessing.workflow.WorkflowFunctions".equals(className));
+        graalJs.eval("var actionFamilyHashing = {name: \"family_hashing\", terminateOnFailure: false};\n"
+            + "var actionBulkIndexer = {name: \"bulk_indexer\", terminateOnFailure: true};\n"
+            + "var actionElastic = {name: \"elastic\", terminateOnFailure: false};\n"
+            + "var ACTIONS = [actionFamilyHashing, actionBulkIndexer, actionElastic];");
+        graalJs.eval(new InputStreamReader(new FileInputStream(Paths.get("src", "main", "resources", "workflow-control.js")
+            .toFile())));
+        evalAddFailuresScript(graalJs);
+        return (Invocable) graalJs;
+    }
+
     /**
      * Utility method to create a Javascript engine with a predefined set of actions and the workflow-control.js loaded.
      * This function will also eval any scripts passed to it as params.
@@ -229,12 +253,16 @@ public class WorkflowHelper
     }
 
     private static ScriptEngine getScriptEngine() {
+        return getScriptEngine(s -> true);
+    }
+
+    private static ScriptEngine getScriptEngine(final Predicate<String> hostClassFilter) {
         return GraalJSScriptEngine.create(
             null,
             Context.newBuilder("js")
                 .allowExperimentalOptions(true) // Needed for loading from classpath
                 .allowHostAccess(HostAccess.ALL) // Allow JS access to public Java methods/members
-                .allowHostClassLookup(s -> true) // Allow JS access to public Java classes
+                .allowHostClassLookup(hostClassFilter) // Allow JS access to public Java classes
                 .option("js.load-from-classpath", "true"));
     }
 }
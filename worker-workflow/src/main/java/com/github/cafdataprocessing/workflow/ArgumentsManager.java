@@ -16,6 +16,7 @@
 package com.github.cafdataprocessing.workflow;
 
 import com.github.cafdataprocessing.workflow.model.ArgumentDefinition;
+import com.github.cafdataprocessing.workflow.model.SettingsScopeTemplate;
 import com.github.cafdataprocessing.workflow.restclients.settings_service.api.SettingsApi;
 import com.github.cafdataprocessing.workflow.restclients.settings_service.client.ApiClient;
 import com.github.cafdataprocessing.workflow.restclients.settings_service.client.ApiException;
@@ -23,58 +24,113 @@ import com.github.cafdataprocessing.workflow.restclients.settings_service.model.
 import com.github.cafdataprocessing.workflow.restclients.settings_service.model.Setting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.hpe.caf.worker.document.exceptions.DocumentWorkerTransientException;
 import com.hpe.caf.worker.document.model.Document;
 import com.hpe.caf.worker.document.model.Field;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.time.Instant;
 import okhttp3.Cache;
 import okhttp3.CacheControl;
+import okhttp3.ConnectionPool;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import net.jodah.expiringmap.ExpiringMap;
 
-public class ArgumentsManager {
+public class ArgumentsManager implements Closeable {
 
     private final static Logger LOG = LoggerFactory.getLogger(ArgumentsManager.class);
-    private static final int SETTINGS_SERVICE_CACHE_SIZE_BYTES = 10 * 1024 * 1024; // 10 MiB
     private static final String SETTINGS_SERVICE_CACHE_TEMP_DIRECTORY_PREFIX = "settings-service-http-cache";
     private static final int SETTINGS_SERVICE_CACHE_EXPIRATION_TIME_MINUTES = 5;
+    private static final long SETTING_NOT_FOUND_WARNING_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
 
     private final Gson gson = new Gson();
     private final SettingsApi settingsApi;
     private final SettingsApi forceCacheRefreshSettingsApi;
+    private final SettingsApi cachedOnlySettingsApi;
+    private final OkHttpClient okHttpClient;
+    private final boolean persistentSettingsCache;
     private final Map<SettingsServiceLastAccessTimeMapKey, Long> settingsServiceLastAccessTimeMap;
+    private final ExpiringMap<SettingsServiceLastAccessTimeMapKey, CachedSetting> resolvedSettingsCache;
+    private final long resolvedSettingsCacheExpirationMillis;
+    private final long resolvedSettingsCacheRefreshAheadMillis;
+    private final long settingNotFoundCacheExpirationMillis;
+    private final ConcurrentMap<String, SettingNotFoundWarning> settingNotFoundWarnings = new ConcurrentHashMap<>();
+    private final LongAdder resolvedSettingsCacheHits = new LongAdder();
+    private final LongAdder resolvedSettingsCacheMisses = new LongAdder();
+    private final LongAdder resolvedSettingsCacheEvictions = new LongAdder();
+    private final ConcurrentMap<SettingsServiceLastAccessTimeMapKey, CompletableFuture<String>> inFlightSettingLookups
+        = new ConcurrentHashMap<>();
+    private final ConcurrentMap<SettingsServiceLastAccessTimeMapKey, CompletableFuture<String>> inFlightForcedSettingLookups
+        = new ConcurrentHashMap<>();
+    private final LongAdder coalescedSettingLookups = new LongAdder();
+    private final LongAdder backgroundSettingRefreshes = new LongAdder();
+    private final CircuitBreaker settingsServiceCircuitBreaker;
+    private final ExpiringMap<SettingsServiceLastAccessTimeMapKey, LastKnownSetting> lastKnownSettings;
+    private final long lastKnownSettingsMaxAgeMillis;
+    private final LongAdder staleSettingValues = new LongAdder();
+    private final LongAccumulator staleSettingValueMaxAgeMillis = new LongAccumulator(Math::max, 0);
+    private final ExecutorService settingsLookupExecutor;
+    private final ExecutorService settingsRefreshExecutor;
+    private final ScheduledExecutorService healthCheckExecutor;
+    private final long healthCheckStaleAfterMillis;
+    private volatile HealthCheckResult lastHealthCheckResult;
 
     public ArgumentsManager(final String settingsServiceUrl)
     {
         this(new SettingsApi(), new SettingsApi(), settingsServiceUrl);
     }
 
+    public ArgumentsManager(final WorkflowWorkerConfiguration configuration)
+    {
+        this(new SettingsApi(), new SettingsApi(), configuration);
+    }
+
     public ArgumentsManager(
         final SettingsApi settingsApi,
         final SettingsApi forceCacheRefreshSettingsApi,
         final String settingsServiceUrl){
+        this(settingsApi, forceCacheRefreshSettingsApi, createConfiguration(settingsServiceUrl));
+    }
+
+    public ArgumentsManager(
+        final SettingsApi settingsApi,
+        final SettingsApi forceCacheRefreshSettingsApi,
+        final WorkflowWorkerConfiguration configuration){
         Objects.requireNonNull(settingsApi);
         Objects.requireNonNull(forceCacheRefreshSettingsApi);
-        Objects.requireNonNull(settingsServiceUrl);
+        Objects.requireNonNull(configuration);
+        final String settingsServiceUrl = Objects.requireNonNull(configuration.getSettingsServiceUrl());
+        this.persistentSettingsCache = !Strings.isNullOrEmpty(configuration.getSettingsServiceCacheDirectory());
 
         // Client that will cache responses
         this.settingsApi = settingsApi;
-        final OkHttpClient okHttpClient = createOkHttpClient();
+        this.okHttpClient = createOkHttpClient(configuration);
         final ApiClient apiClient = createApiClient(settingsServiceUrl, okHttpClient);
         this.settingsApi.setApiClient(apiClient);
 
@@ -85,27 +141,131 @@ public class ArgumentsManager {
         final ApiClient forceCacheRefreshApiClient = createApiClient(settingsServiceUrl, forceCacheRefreshClientBuilder.build());
         this.forceCacheRefreshSettingsApi.setApiClient(forceCacheRefreshApiClient);
 
+        // Client that will only read from a persistent cache, used for the last known value of a setting when the settings
+        // service cannot be reached, including when the worker has just started
+        if (persistentSettingsCache && configuration.getSettingsServiceMaxStaleSeconds() > 0) {
+            this.cachedOnlySettingsApi = new SettingsApi();
+            final OkHttpClient cachedOnlyClient = okHttpClient.newBuilder()
+                .addInterceptor(new CachedOnlyInterceptor(configuration.getSettingsServiceMaxStaleSeconds()))
+                .build();
+            this.cachedOnlySettingsApi.setApiClient(createApiClient(settingsServiceUrl, cachedOnlyClient));
+        } else {
+            this.cachedOnlySettingsApi = null;
+        }
+
         this.settingsServiceLastAccessTimeMap
             = ExpiringMap
                 .builder()
                 .expiration(SETTINGS_SERVICE_CACHE_EXPIRATION_TIME_MINUTES, TimeUnit.MINUTES)
                 .build();
+
+        // In-memory cache of resolved settings, so that a cached setting does not have to be read from the HTTP cache
+        this.resolvedSettingsCacheExpirationMillis = TimeUnit.SECONDS.toMillis(configuration.getSettingsCacheExpirationSeconds());
+        this.resolvedSettingsCache
+            = ExpiringMap
+                .builder()
+                .maxSize(configuration.getSettingsCacheMaxEntries())
+                .variableExpiration()
+                .<SettingsServiceLastAccessTimeMapKey, CachedSetting>expirationListener(
+                    (key, value) -> resolvedSettingsCacheEvictions.increment())
+                .build();
+
+        // Settings that were not found are remembered briefly, so optional settings are not looked up for every document
+        this.settingNotFoundCacheExpirationMillis
+            = TimeUnit.SECONDS.toMillis(configuration.getSettingsNotFoundCacheExpirationSeconds());
+
+        // Requests stop being sent to the settings service while it keeps failing, and the last known value of a setting may be
+        // used instead of failing the lookup
+        this.settingsServiceCircuitBreaker = new CircuitBreaker(
+            "settings service",
+            configuration.getSettingsServiceCircuitBreakerFailureThreshold(),
+            TimeUnit.SECONDS.toMillis(configuration.getSettingsServiceCircuitBreakerOpenSeconds()));
+        this.lastKnownSettingsMaxAgeMillis = TimeUnit.SECONDS.toMillis(configuration.getSettingsServiceMaxStaleSeconds());
+        this.lastKnownSettings = lastKnownSettingsMaxAgeMillis > 0
+            ? ExpiringMap
+                .builder()
+                .maxSize(configuration.getSettingsCacheMaxEntries())
+                .variableExpiration()
+                .build()
+            : null;
+
+        // Settings that are read shortly before they expire are refreshed in the background
+        this.resolvedSettingsCacheRefreshAheadMillis = TimeUnit.SECONDS.toMillis(configuration.getSettingsCacheRefreshAheadSeconds());
+        this.settingsRefreshExecutor = resolvedSettingsCacheRefreshAheadMillis > 0
+            ? Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("settings-service-refresh-%d")
+                .setDaemon(true)
+                .build())
+            : null;
+
+        // Threads used to look up the settings for different arguments of a document at the same time
+        final int settingsLookupThreads = configuration.getSettingsServiceLookupThreads();
+        this.settingsLookupExecutor = settingsLookupThreads > 1
+            ? Executors.newFixedThreadPool(settingsLookupThreads, new ThreadFactoryBuilder()
+                .setNameFormat("settings-service-lookup-%d")
+                .setDaemon(true)
+                .build())
+            : null;
+
+        // The settings service health is checked in the background, so that health checks do not wait for the settings service.
+        // The first check starts straight away, and the settings service is reported as unhealthy until it has completed.
+        final int healthCheckIntervalSeconds = configuration.getSettingsServiceHealthCheckIntervalSeconds();
+        this.healthCheckStaleAfterMillis = TimeUnit.SECONDS.toMillis(3L * healthCheckIntervalSeconds);
+        if (healthCheckIntervalSeconds > 0) {
+            this.healthCheckExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("settings-service-health-check-%d")
+                .setDaemon(true)
+                .build());
+            this.healthCheckExecutor.scheduleWithFixedDelay(
+                this::refreshHealthCheckResult, 0, healthCheckIntervalSeconds, TimeUnit.SECONDS);
+        } else {
+            this.healthCheckExecutor = null;
+        }
+    }
+
+    private static WorkflowWorkerConfiguration createConfiguration(final String settingsServiceUrl)
+    {
+        final WorkflowWorkerConfiguration configuration = new WorkflowWorkerConfiguration();
+        configuration.setSettingsServiceUrl(settingsServiceUrl);
+        return configuration;
+    }
+
+    private OkHttpClient createOkHttpClient(final WorkflowWorkerConfiguration configuration) throws RuntimeException
+    {
+        final File settingsServiceCacheDirectory = getSettingsServiceCacheDirectory(configuration.getSettingsServiceCacheDirectory());
+        final Cache cache = new Cache(settingsServiceCacheDirectory, configuration.getSettingsServiceCacheSizeBytes());
+        final OkHttpClient.Builder builder = new OkHttpClient.Builder()
+            .cache(cache)
+            .connectTimeout(configuration.getSettingsServiceConnectTimeoutSeconds(), TimeUnit.SECONDS)
+            .readTimeout(configuration.getSettingsServiceReadTimeoutSeconds(), TimeUnit.SECONDS)
+            .callTimeout(configuration.getSettingsServiceCallTimeoutSeconds(), TimeUnit.SECONDS)
+            .connectionPool(new ConnectionPool(
+                configuration.getSettingsServiceMaxIdleConnections(),
+                configuration.getSettingsServiceKeepAliveSeconds(),
+                TimeUnit.SECONDS))
+            .addNetworkInterceptor(new SetCacheMaxAgeInterceptor())
+            .addNetworkInterceptor(new RecordLastAccessTimeInterceptor());
+        if (persistentSettingsCache) {
+            builder.addInterceptor(new RecordCachedResponseTimeInterceptor());
+        }
+        return builder.build();
     }
 
-    private OkHttpClient createOkHttpClient() throws RuntimeException
+    private static File getSettingsServiceCacheDirectory(final String settingsServiceCacheDirectory) throws RuntimeException
     {
-        final File settingsServiceCacheDirectory;
+        if (Strings.isNullOrEmpty(settingsServiceCacheDirectory)) {
+            try {
+                return Files.createTempDirectory(SETTINGS_SERVICE_CACHE_TEMP_DIRECTORY_PREFIX).toFile();
+            } catch (final IOException ex) {
+                throw new RuntimeException("Unable to create a temporary directory for the Settings Service cache", ex);
+            }
+        }
         try {
-            settingsServiceCacheDirectory = Files.createTempDirectory(SETTINGS_SERVICE_CACHE_TEMP_DIRECTORY_PREFIX).toFile();
+            return Files.createDirectories(Paths.get(settingsServiceCacheDirectory)).toFile();
         } catch (final IOException ex) {
-            throw new RuntimeException("Unable to create a temporary directory for the Settings Service cache", ex);
+            throw new RuntimeException(
+                String.format("Unable to create the Settings Service cache directory [%s]", settingsServiceCacheDirectory), ex);
         }
-        final Cache cache = new Cache(settingsServiceCacheDirectory, SETTINGS_SERVICE_CACHE_SIZE_BYTES);
-        return new OkHttpClient.Builder()
-            .cache(cache)
-            .addNetworkInterceptor(new SetCacheMaxAgeInterceptor())
-            .addNetworkInterceptor(new RecordLastAccessTimeInterceptor())
-            .build();
     }
 
     private static ApiClient createApiClient(final String settingsServiceUrl, final OkHttpClient okHttpClient)
@@ -168,6 +328,62 @@ public class ArgumentsManager {
         }
     }
 
+    private final class RecordCachedResponseTimeInterceptor implements Interceptor
+    {
+        @Override
+        public Response intercept(final Interceptor.Chain chain) throws IOException
+        {
+            final Request request = chain.request();
+            final Response response = chain.proceed(request);
+            if (response.networkResponse() == null && response.cacheResponse() != null) {
+                // The response may have been cached before the worker started, so the time at which it was received is recorded
+                // in case the settings have been updated since
+                final SettingsServiceLastAccessTimeMapKey key = SettingsServiceLastAccessTimeMapKey.from(request.url().uri());
+                final long receivedTime = response.receivedResponseAtMillis();
+                if (settingsServiceLastAccessTimeMap.putIfAbsent(key, receivedTime) == null) {
+                    LOG.debug(String.format("Recorded last access time for cached response: %s as: %s", key, receivedTime));
+                }
+            }
+            return response;
+        }
+    }
+
+    private final class CachedOnlyInterceptor implements Interceptor
+    {
+        private final int maxStaleSeconds;
+
+        public CachedOnlyInterceptor(final int maxStaleSeconds)
+        {
+            this.maxStaleSeconds = maxStaleSeconds;
+        }
+
+        @Override
+        public Response intercept(final Interceptor.Chain chain) throws IOException
+        {
+            final CacheControl cacheControl = new CacheControl.Builder()
+                .onlyIfCached()
+                .maxStale(maxStaleSeconds, TimeUnit.SECONDS)
+                .build();
+            final Request originalRequest = chain.request();
+            final Request cachedOnlyRequest = originalRequest.newBuilder().cacheControl(cacheControl).build();
+            final Response response = chain.proceed(cachedOnlyRequest);
+            if (response.cacheResponse() == null) {
+                return response;
+            }
+            // max-stale is measured from the end of the response's freshness lifetime, so the age of the response is also
+            // checked to keep it within the same limit as the in-memory last known values
+            final long ageMillis = Instant.now().toEpochMilli() - response.receivedResponseAtMillis();
+            final SettingsServiceLastAccessTimeMapKey key = SettingsServiceLastAccessTimeMapKey.from(originalRequest.url().uri());
+            if (ageMillis > lastKnownSettingsMaxAgeMillis) {
+                response.close();
+                throw new IOException(String.format("The persistently cached value of: %s is %s ms old", key, ageMillis));
+            }
+            staleSettingValueMaxAgeMillis.accumulate(ageMillis);
+            LOG.debug(String.format("The persistently cached value of: %s is %s ms old", key, ageMillis));
+            return response;
+        }
+    }
+
     public void addArgumentsToDocument(
         final List<ArgumentDefinition> argumentDefinitions,
         final Document document,
@@ -185,39 +401,50 @@ public class ArgumentsManager {
             return;
         }
 
-        final Map<String, String> arguments = new HashMap<>();
+        // Each argument is resolved from its sources in order. Settings service lookups are resolved in rounds: every argument that
+        // needs a settings service value in the current round is looked up concurrently, and only the arguments that did not get a
+        // value move on to their next source in the following round.
+        final int argumentCount = argumentDefinitions.size();
+        final String[] values = new String[argumentCount];
+        final int[] nextSourceIndexes = new int[argumentCount];
+        List<Integer> pendingArgumentIndexes = new ArrayList<>(argumentCount);
+        for (int index = 0; index < argumentCount; index++) {
+            pendingArgumentIndexes.add(index);
+        }
 
-        for(final ArgumentDefinition argumentDefinition : argumentDefinitions) {
-            String value = null;
-            if(argumentDefinition.getSources() != null){
-                for(final ArgumentDefinition.Source source: argumentDefinition.getSources()) {
-                    switch (source.getType()){
-                        case CUSTOM_DATA: {
-                            value = document.getCustomData(source.getName());
-                            break;
-                        }
-                        case FIELD: {
-                            final Field field = document.getField(source.getName());
-                            if(field.hasValues()){
-                                value = field.getStringValues().get(0);
-                            }
-                            break;
-                        }
-                        case SETTINGS_SERVICE: {
-                            value = getFromSettingService(
-                                source.getName(), source.getOptions(), document, settingsServiceLastUpdateTimeMillisOpt);
-                            break;
-                        }
-                        default: {
-                            throw new UnsupportedOperationException(String.format("Invalid source type [%s].",
-                                    source.getType()));
-                        }
-                    }
-                    if(!Strings.isNullOrEmpty(value)){
+        while (!pendingArgumentIndexes.isEmpty()) {
+            final List<SettingLookup> settingLookups = new ArrayList<>();
+            for (final int argumentIndex : pendingArgumentIndexes) {
+                final List<ArgumentDefinition.Source> sources = argumentDefinitions.get(argumentIndex).getSources();
+                if (sources == null) {
+                    continue;
+                }
+                while (Strings.isNullOrEmpty(values[argumentIndex]) && nextSourceIndexes[argumentIndex] < sources.size()) {
+                    final ArgumentDefinition.Source source = sources.get(nextSourceIndexes[argumentIndex]++);
+                    if (source.getType() == ArgumentDefinition.SourceType.SETTINGS_SERVICE) {
+                        settingLookups.add(new SettingLookup(
+                            argumentIndex, getSettingsQuery(source, document)));
                         break;
                     }
+                    values[argumentIndex] = getFromDocument(source, document);
+                }
+            }
+
+            resolveSettings(settingLookups, settingsServiceLastUpdateTimeMillisOpt);
+
+            pendingArgumentIndexes = new ArrayList<>(settingLookups.size());
+            for (final SettingLookup settingLookup : settingLookups) {
+                values[settingLookup.argumentIndex] = settingLookup.value;
+                if (Strings.isNullOrEmpty(settingLookup.value)) {
+                    pendingArgumentIndexes.add(settingLookup.argumentIndex);
                 }
             }
+        }
+
+        final Map<String, String> arguments = new HashMap<>();
+        for (int index = 0; index < argumentCount; index++) {
+            final ArgumentDefinition argumentDefinition = argumentDefinitions.get(index);
+            String value = values[index];
 
             if(Strings.isNullOrEmpty(value) && !Strings.isNullOrEmpty(argumentDefinition.getDefaultValue())) {
                 value = argumentDefinition.getDefaultValue();
@@ -231,34 +458,92 @@ public class ArgumentsManager {
         document.getField("CAF_WORKFLOW_SETTINGS").set(gson.toJson(arguments));
     }
 
-    private String getFromSettingService(
-        final String name,
-        final String options,
-        final Document document,
+    private static String getFromDocument(final ArgumentDefinition.Source source, final Document document)
+    {
+        switch (source.getType()){
+            case CUSTOM_DATA: {
+                return document.getCustomData(source.getName());
+            }
+            case FIELD: {
+                final Field field = document.getField(source.getName());
+                if(field.hasValues()){
+                    return field.getStringValues().get(0);
+                }
+                return null;
+            }
+            default: {
+                throw new UnsupportedOperationException(String.format("Invalid source type [%s].",
+                        source.getType()));
+            }
+        }
+    }
+
+    private void resolveSettings(
+        final List<SettingLookup> settingLookups,
         final Optional<Long> settingsServiceLastUpdateTimeMillisOpt)
             throws DocumentWorkerTransientException {
 
-        final Pattern pattern = Pattern.compile("(?<prefix>[a-zA-Z-_.]*)%(?<type>f|cd):(?<name>[a-zA-Z-_.]*)%(?<suffix>[a-zA-Z-_.]*)");
+        if (settingsLookupExecutor == null || settingLookups.size() < 2) {
+            for (final SettingLookup settingLookup : settingLookups) {
+                settingLookup.value = getResolvedSettingValue(settingLookup.query, settingsServiceLastUpdateTimeMillisOpt);
+            }
+            return;
+        }
+
+        // The lookups log with the tenantId and correlationId of the document being processed
+        final Map<String, String> mdcContext = MDC.getCopyOfContextMap();
+        final List<CompletableFuture<String>> futures = new ArrayList<>(settingLookups.size());
+        for (final SettingLookup settingLookup : settingLookups) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                if (mdcContext != null) {
+                    MDC.setContextMap(mdcContext);
+                }
+                try {
+                    return getResolvedSettingValue(settingLookup.query, settingsServiceLastUpdateTimeMillisOpt);
+                } catch (final DocumentWorkerTransientException ex) {
+                    throw new CompletionException(ex);
+                } finally {
+                    MDC.clear();
+                }
+            }, settingsLookupExecutor));
+        }
+        for (int index = 0; index < settingLookups.size(); index++) {
+            settingLookups.get(index).value = join(futures.get(index));
+        }
+    }
+
+    private static <T> T join(final CompletableFuture<T> future) throws DocumentWorkerTransientException
+    {
+        try {
+            return future.join();
+        } catch (final CompletionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof DocumentWorkerTransientException) {
+                throw (DocumentWorkerTransientException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw ex;
+        }
+    }
+
+    private static SettingsQuery getSettingsQuery(final ArgumentDefinition.Source source, final Document document)
+    {
         final List<String> scopes = new ArrayList<>();
         final List<String> priorities = new ArrayList<>();
-        final String[] scopesToProcess = options.split(",");
         int priority = 1;
-        for(final String scope:scopesToProcess) {
-            final Matcher matcher = pattern.matcher(scope);
-            if (matcher.matches()){
-                final String prefix = matcher.group("prefix");
-                final String type = matcher.group("type");
-                final String fieldName = matcher.group("name");
-                final String suffix = matcher.group("suffix");
-                if (type.equals("f")){
-                    final Field field = document.getField(fieldName);
+        for (final SettingsScopeTemplate.Scope scope : source.getScopeTemplate().getScopes()) {
+            switch (scope.getType()) {
+                case FIELD: {
+                    final Field field = document.getField(scope.getName());
                     if(field.hasValues()){
                         boolean fldScopeValueAdded = false;
                         final List<String> fldValues = field.getStringValues();
                         for (final String fldValue : fldValues) {
                             if (!Strings.isNullOrEmpty(fldValue)) {
                                 fldScopeValueAdded = true;
-                                scopes.add(String.format("%s%s%s", prefix, fldValue, suffix));
+                                scopes.add(scope.format(fldValue));
                                 priorities.add(String.valueOf(priority));
                             }
                         }
@@ -266,43 +551,366 @@ public class ArgumentsManager {
                             priority++;
                         }
                     }
+                    break;
                 }
-                else if (type.equals("cd")){
-                    final String value = document.getCustomData(fieldName);
+                case CUSTOM_DATA: {
+                    final String value = document.getCustomData(scope.getName());
                     if (!Strings.isNullOrEmpty(value)) {
-                        scopes.add(String.format("%s%s%s", prefix, value, suffix));
+                        scopes.add(scope.format(value));
                         priorities.add(String.valueOf(priority));
                         priority++;
                     }
+                    break;
+                }
+                default: {
+                    scopes.add(scope.format(""));
+                    priorities.add(String.valueOf(priority));
+                    priority++;
                 }
             }
-            else {
-                scopes.add(scope);
-                priorities.add(String.valueOf(priority));
-                priority++;
+        }
+
+        return new SettingsQuery(source.getName(), scopes, priorities);
+    }
+
+    private String getResolvedSettingValue(
+        final SettingsQuery query,
+        final Optional<Long> settingsServiceLastUpdateTimeMillisOpt)
+            throws DocumentWorkerTransientException {
+
+        final SettingsServiceLastAccessTimeMapKey key = query.key;
+        final boolean forceCacheRefresh = shouldForceCacheRefresh(key, settingsServiceLastUpdateTimeMillisOpt);
+        if (!forceCacheRefresh) {
+            final CachedSetting cachedSetting = resolvedSettingsCache.get(key);
+            if (cachedSetting != null) {
+                resolvedSettingsCacheHits.increment();
+                if (cachedSetting.notFound) {
+                    warnSettingNotFound(query.name);
+                } else {
+                    refreshAheadIfDue(query, cachedSetting);
+                }
+                return cachedSetting.value;
             }
         }
+        resolvedSettingsCacheMisses.increment();
+        final String value = getCoalescedSettingValue(query, forceCacheRefresh);
+
+        // A response from a persistent cache may have been stored before the settings were last updated, which is only known once
+        // the response has been read
+        if (!forceCacheRefresh && persistentSettingsCache
+            && shouldForceCacheRefresh(key, settingsServiceLastUpdateTimeMillisOpt)) {
+            return getCoalescedSettingValue(query, true);
+        }
+        return value;
+    }
+
+    private String getCoalescedSettingValue(final SettingsQuery query, final boolean forceCacheRefresh)
+        throws DocumentWorkerTransientException
+    {
+        final SettingsServiceLastAccessTimeMapKey key = query.key;
+
+        // Concurrent lookups of the same setting share a single request to the settings service, and its result or its error.
+        // Forced refreshes are only shared with other forced refreshes, so that they never receive a value read from the cache.
+        final ConcurrentMap<SettingsServiceLastAccessTimeMapKey, CompletableFuture<String>> inFlightLookups
+            = forceCacheRefresh ? inFlightForcedSettingLookups : inFlightSettingLookups;
+        final CompletableFuture<String> lookup = new CompletableFuture<>();
+        final CompletableFuture<String> inFlightLookup = inFlightLookups.putIfAbsent(key, lookup);
+        if (inFlightLookup != null) {
+            coalescedSettingLookups.increment();
+            LOG.debug(String.format("Waiting for the in-flight lookup of: %s", key));
+            return join(inFlightLookup);
+        }
+
+        try {
+            final String value = lookUpResolvedSettingValue(query, forceCacheRefresh);
+            lookup.complete(value);
+            return value;
+        } catch (final DocumentWorkerTransientException | RuntimeException ex) {
+            lookup.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlightLookups.remove(key, lookup);
+        }
+    }
+
+    private String lookUpResolvedSettingValue(final SettingsQuery query, final boolean forceCacheRefresh)
+        throws DocumentWorkerTransientException
+    {
+        if (!settingsServiceCircuitBreaker.allowRequest()) {
+            return getLastKnownSettingValue(query, "The settings service circuit breaker is open.");
+        }
 
         final ResolvedSetting resolvedSetting;
         try {
-            resolvedSetting = (shouldForceCacheRefresh(name, scopes, priorities, settingsServiceLastUpdateTimeMillisOpt)
-                ? forceCacheRefreshSettingsApi : settingsApi)
-                .getResolvedSetting(name, String.join(",", scopes), String.join(",", priorities));
+            resolvedSetting = (forceCacheRefresh ? forceCacheRefreshSettingsApi : settingsApi)
+                .getResolvedSetting(query.name, query.scopes, query.priorities);
         } catch (final ApiException e) {
             if(e.getCode()==404){
-                LOG.warn(String.format("Setting [%s] was not found in the settings service.", name));
+                settingsServiceCircuitBreaker.onSuccess();
+                warnSettingNotFound(query.name);
+                cacheSettingNotFound(query);
                 return null;
             }
-            throw new DocumentWorkerTransientException(e.getMessage());
+            if (isSettingsServiceFailure(e)) {
+                settingsServiceCircuitBreaker.onFailure();
+            } else {
+                // The settings service responded, so it is available even though it rejected this request
+                settingsServiceCircuitBreaker.onSuccess();
+            }
+            return getLastKnownSettingValue(query, e.getMessage());
+        } catch (final RuntimeException e) {
+            settingsServiceCircuitBreaker.onFailure();
+            throw e;
         }
-        if(resolvedSetting==null){
-            return null;
+        settingsServiceCircuitBreaker.onSuccess();
+        final String value = resolvedSetting == null ? null : resolvedSetting.getValue();
+        cacheResolvedSetting(query, value);
+        if (lastKnownSettings != null) {
+            rememberLastKnownSetting(query, value);
         }
-        return resolvedSetting.getValue();
+        return value;
     }
 
-    @SuppressWarnings("unused")
+    /**
+     * Checks whether a failed request shows that the settings service is unavailable. The client reports a request that could not
+     * be sent, or whose response could not be read, with a code of 0.
+     */
+    private static boolean isSettingsServiceFailure(final ApiException ex)
+    {
+        return ex.getCode() == 0 || ex.getCode() >= 500;
+    }
+
+    /**
+     * Remembers a value that has just been read as the last known value of the setting. The value may have been read from a
+     * persistent cache, so its age is taken from when its response was received, which is recorded as the last access time, and it
+     * is only remembered for what remains of settingsServiceMaxStaleSeconds.
+     */
+    private void rememberLastKnownSetting(final SettingsQuery query, final String value)
+    {
+        final long now = Instant.now().toEpochMilli();
+        final Long lastAccessTimeMillis = settingsServiceLastAccessTimeMap.get(query.key);
+        final long receivedTimeMillis = lastAccessTimeMillis == null ? now : Math.min(lastAccessTimeMillis, now);
+        final long remainingMillis = lastKnownSettingsMaxAgeMillis - (now - receivedTimeMillis);
+        if (remainingMillis > 0) {
+            lastKnownSettings.put(
+                query.key, new LastKnownSetting(value, receivedTimeMillis), remainingMillis, TimeUnit.MILLISECONDS);
+        } else {
+            lastKnownSettings.remove(query.key);
+        }
+    }
+
+    private String getLastKnownSettingValue(final SettingsQuery query, final String failureMessage)
+        throws DocumentWorkerTransientException
+    {
+        final LastKnownSetting lastKnownSetting = lastKnownSettings == null ? null : lastKnownSettings.get(query.key);
+        if (lastKnownSetting != null) {
+            final long ageMillis = Instant.now().toEpochMilli() - lastKnownSetting.receivedTimeMillis;
+            if (ageMillis <= lastKnownSettingsMaxAgeMillis) {
+                staleSettingValues.increment();
+                staleSettingValueMaxAgeMillis.accumulate(ageMillis);
+                LOG.debug(String.format("Using the last known value of: %s, which is %s ms old, because: %s",
+                                        query.key, ageMillis, failureMessage));
+                return lastKnownSetting.value;
+            }
+        }
+        if (cachedOnlySettingsApi != null) {
+            try {
+                final ResolvedSetting resolvedSetting
+                    = cachedOnlySettingsApi.getResolvedSetting(query.name, query.scopes, query.priorities);
+                staleSettingValues.increment();
+                LOG.debug(String.format("Using the persistently cached value of: %s because: %s", query.key, failureMessage));
+                return resolvedSetting == null ? null : resolvedSetting.getValue();
+            } catch (final ApiException ex) {
+                // The setting is not in the persistent cache, or its cached value is too stale
+                LOG.debug(String.format("No persistently cached value of: %s is available: %s", query.key, ex.getMessage()));
+            }
+        }
+        throw new DocumentWorkerTransientException(failureMessage);
+    }
+
+    private void refreshAheadIfDue(final SettingsQuery query, final CachedSetting cachedSetting)
+    {
+        if (settingsRefreshExecutor == null
+            || Instant.now().toEpochMilli() < cachedSetting.refreshTimeMillis
+            || !cachedSetting.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        LOG.debug(String.format("Refreshing: %s in the background", query.key));
+        backgroundSettingRefreshes.increment();
+        settingsRefreshExecutor.execute(() -> {
+            try {
+                // The HTTP cache entry expires at the same time, so the refresh has to bypass it to read a newer value
+                getCoalescedSettingValue(query, true);
+            } catch (final DocumentWorkerTransientException | RuntimeException ex) {
+                LOG.warn(String.format("Unable to refresh setting [%s] in the background: %s", query.name, ex.getMessage()));
+            } finally {
+                // A refresh does not always replace the entry, for example when the setting is no longer found or the value came
+                // from the persistent cache, so the entry must be allowed to refresh again. A replaced entry is no longer read.
+                cachedSetting.refreshing.set(false);
+            }
+        });
+    }
+
+    private void cacheResolvedSetting(final SettingsQuery query, final String value)
+    {
+        final SettingsServiceLastAccessTimeMapKey key = query.key;
+
+        // The value may have come from the HTTP cache, so it is only held until the HTTP cache entry would have expired
+        long expirationMillis = resolvedSettingsCacheExpirationMillis;
+        final Long lastAccessTimeMillis = settingsServiceLastAccessTimeMap.get(key);
+        if (lastAccessTimeMillis != null) {
+            final long httpCacheExpirationMillis = lastAccessTimeMillis
+                + TimeUnit.MINUTES.toMillis(SETTINGS_SERVICE_CACHE_EXPIRATION_TIME_MINUTES)
+                - Instant.now().toEpochMilli();
+            expirationMillis = Math.min(expirationMillis, httpCacheExpirationMillis);
+        }
+        if (expirationMillis > 0) {
+            // The refresh starts no earlier than half way through the time that the setting is held for, so that a short lived
+            // setting is not refreshed on every read
+            final long refreshTimeMillis = Instant.now().toEpochMilli()
+                + expirationMillis - Math.min(resolvedSettingsCacheRefreshAheadMillis, expirationMillis / 2);
+            resolvedSettingsCache.put(key, new CachedSetting(value, refreshTimeMillis), expirationMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cacheSettingNotFound(final SettingsQuery query)
+    {
+        if (settingNotFoundCacheExpirationMillis <= 0) {
+            return;
+        }
+        // Recording the lookup as an access means that a later settings update still forces the setting to be looked up again
+        settingsServiceLastAccessTimeMap.put(query.key, Instant.now().toEpochMilli());
+        resolvedSettingsCache.put(query.key, CachedSetting.NOT_FOUND, settingNotFoundCacheExpirationMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void warnSettingNotFound(final String settingName)
+    {
+        final SettingNotFoundWarning warning
+            = settingNotFoundWarnings.computeIfAbsent(settingName, name -> new SettingNotFoundWarning());
+        warning.count.increment();
+        final long now = Instant.now().toEpochMilli();
+        final long lastLoggedTimeMillis = warning.lastLoggedTimeMillis.get();
+        if (now - lastLoggedTimeMillis >= SETTING_NOT_FOUND_WARNING_INTERVAL_MILLIS
+            && warning.lastLoggedTimeMillis.compareAndSet(lastLoggedTimeMillis, now)) {
+            final long count = warning.count.sumThenReset();
+            if (lastLoggedTimeMillis == 0) {
+                LOG.warn(String.format("Setting [%s] was not found in the settings service.", settingName));
+            } else {
+                LOG.warn(String.format("Setting [%s] was not found in the settings service for %s document(s) in the last %s "
+                    + "second(s).", settingName, count, TimeUnit.MILLISECONDS.toSeconds(now - lastLoggedTimeMillis)));
+            }
+        }
+    }
+
+    public long getSettingsCacheHitCount()
+    {
+        return resolvedSettingsCacheHits.sum();
+    }
+
+    public long getSettingsCacheMissCount()
+    {
+        return resolvedSettingsCacheMisses.sum();
+    }
+
+    public long getSettingsCacheEvictionCount()
+    {
+        return resolvedSettingsCacheEvictions.sum();
+    }
+
+    public long getSettingsCoalescedLookupCount()
+    {
+        return coalescedSettingLookups.sum();
+    }
+
+    public long getSettingsBackgroundRefreshCount()
+    {
+        return backgroundSettingRefreshes.sum();
+    }
+
+    public long getSettingsStaleValueCount()
+    {
+        return staleSettingValues.sum();
+    }
+
+    /**
+     * @return The age in milliseconds of the oldest last known or persistently cached setting value that has been used because the
+     * settings service could not be reached.
+     */
+    public long getSettingsStaleValueMaxAgeMillis()
+    {
+        return staleSettingValueMaxAgeMillis.get();
+    }
+
+    public boolean isSettingsServiceCircuitOpen()
+    {
+        return settingsServiceCircuitBreaker.isOpen();
+    }
+
+    /**
+     * Checks the health of the settings service. When the health is checked in the background, the result of the last background
+     * check is reported instead of contacting the settings service.
+     *
+     * @throws RuntimeException if the settings service is unhealthy.
+     */
     public void checkHealth() {
+        if (healthCheckExecutor == null) {
+            checkSettingsServiceHealth();
+            return;
+        }
+        final HealthCheckResult healthCheckResult = lastHealthCheckResult;
+        if (healthCheckResult == null) {
+            throw new RuntimeException("The settings service health has not been checked yet.");
+        }
+        final long ageMillis = Instant.now().toEpochMilli() - healthCheckResult.timeMillis;
+        if (ageMillis > healthCheckStaleAfterMillis) {
+            throw new RuntimeException(String.format(
+                "The settings service health has not been checked for %s seconds.", TimeUnit.MILLISECONDS.toSeconds(ageMillis)));
+        }
+        if (healthCheckResult.failure != null) {
+            throw new RuntimeException(String.format("%s (checked %s seconds ago)",
+                healthCheckResult.failure.getMessage(), TimeUnit.MILLISECONDS.toSeconds(ageMillis)), healthCheckResult.failure);
+        }
+    }
+
+    /**
+     * Stops the background health checks, setting refreshes and setting lookups, and closes the settings service HTTP cache.
+     *
+     * @throws IOException if the HTTP cache could not be closed.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        shutdown(healthCheckExecutor);
+        shutdown(settingsRefreshExecutor);
+        shutdown(settingsLookupExecutor);
+        okHttpClient.dispatcher().executorService().shutdown();
+        okHttpClient.connectionPool().evictAll();
+        final Cache cache = okHttpClient.cache();
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    private static void shutdown(final ExecutorService executor)
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void refreshHealthCheckResult()
+    {
+        RuntimeException failure = null;
+        try {
+            checkSettingsServiceHealth();
+        } catch (final RuntimeException ex) {
+            failure = ex;
+        }
+        lastHealthCheckResult = new HealthCheckResult(Instant.now().toEpochMilli(), failure);
+    }
+
+    @SuppressWarnings("unused")
+    private void checkSettingsServiceHealth() {
         try {
             final Setting setting = settingsApi.getSetting("healthcheck");
         }
@@ -319,18 +927,16 @@ public class ArgumentsManager {
     }
 
     private boolean shouldForceCacheRefresh(
-        final String settingName,
-        final List<String> scopes,
-        final List<String> priorities,
+        final SettingsServiceLastAccessTimeMapKey key,
         final Optional<Long> settingsServiceLastUpdateTimeMillisOpt)
     {
         if (!settingsServiceLastUpdateTimeMillisOpt.isPresent()) {
             return false;
         }
-        final SettingsServiceLastAccessTimeMapKey key = SettingsServiceLastAccessTimeMapKey.from(settingName, scopes, priorities);
         final Long settingsServiceLastAccessTimeMillis = settingsServiceLastAccessTimeMap.get(key);
         if (settingsServiceLastAccessTimeMillis == null) {
-            return true;
+            // When the cache is persistent, the time that a cached response was received is checked after it has been read
+            return !persistentSettingsCache;
         }
         if (settingsServiceLastUpdateTimeMillisOpt.get() > settingsServiceLastAccessTimeMillis) {
             LOG.debug(String.format("Forcing cache refresh for: %s because the last update time: %s is greater than "
@@ -344,6 +950,88 @@ public class ArgumentsManager {
         }
     }
 
+    private static final class SettingsQuery
+    {
+        private final String name;
+        private final String scopes;
+        private final String priorities;
+        private final SettingsServiceLastAccessTimeMapKey key;
+
+        public SettingsQuery(final String name, final List<String> scopes, final List<String> priorities)
+        {
+            this.name = name;
+            this.scopes = String.join(",", scopes);
+            this.priorities = String.join(",", priorities);
+            this.key = SettingsServiceLastAccessTimeMapKey.from(name, scopes, priorities);
+        }
+    }
+
+    private static final class SettingLookup
+    {
+        private final int argumentIndex;
+        private final SettingsQuery query;
+        private String value;
+
+        public SettingLookup(final int argumentIndex, final SettingsQuery query)
+        {
+            this.argumentIndex = argumentIndex;
+            this.query = query;
+        }
+    }
+
+    private static final class CachedSetting
+    {
+        private static final CachedSetting NOT_FOUND = new CachedSetting(null, Long.MAX_VALUE, true);
+
+        private final String value;
+        private final long refreshTimeMillis;
+        private final boolean notFound;
+        private final AtomicBoolean refreshing;
+
+        public CachedSetting(final String value, final long refreshTimeMillis)
+        {
+            this(value, refreshTimeMillis, false);
+        }
+
+        private CachedSetting(final String value, final long refreshTimeMillis, final boolean notFound)
+        {
+            this.value = value;
+            this.refreshTimeMillis = refreshTimeMillis;
+            this.notFound = notFound;
+            this.refreshing = new AtomicBoolean();
+        }
+    }
+
+    private static final class LastKnownSetting
+    {
+        private final String value;
+        private final long receivedTimeMillis;
+
+        public LastKnownSetting(final String value, final long receivedTimeMillis)
+        {
+            this.value = value;
+            this.receivedTimeMillis = receivedTimeMillis;
+        }
+    }
+
+    private static final class HealthCheckResult
+    {
+        private final long timeMillis;
+        private final RuntimeException failure;
+
+        public HealthCheckResult(final long timeMillis, final RuntimeException failure)
+        {
+            this.timeMillis = timeMillis;
+            this.failure = failure;
+        }
+    }
+
+    private static final class SettingNotFoundWarning
+    {
+        private final LongAdder count = new LongAdder();
+        private final AtomicLong lastLoggedTimeMillis = new AtomicLong();
+    }
+
     private static final class SettingsServiceLastAccessTimeMapKey
     {
         private final String key;
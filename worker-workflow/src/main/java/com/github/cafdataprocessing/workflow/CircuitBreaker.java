@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.workflow;
+
+import java.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops requests being sent to a service that keeps failing.
+ *
+ * The circuit opens after a number of consecutive failures, and requests are refused while it is open. Once it has been open for
+ * the configured time a single request is allowed through as a probe: if the probe succeeds the circuit closes, and if it fails
+ * the circuit opens again.
+ */
+final class CircuitBreaker
+{
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openDurationMillis;
+    private State state;
+    private int consecutiveFailures;
+    private long openedTimeMillis;
+
+    /**
+     * @param name The name of the service, used in log messages.
+     * @param failureThreshold The number of consecutive failures that open the circuit. If 0 or less then the circuit never opens.
+     * @param openDurationMillis The time for which the circuit stays open before a probe request is allowed.
+     */
+    public CircuitBreaker(final String name, final int failureThreshold, final long openDurationMillis)
+    {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openDurationMillis = openDurationMillis;
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Checks whether a request may be sent. A caller that is allowed to send a request must report its outcome.
+     *
+     * @return true if the request may be sent.
+     */
+    public synchronized boolean allowRequest()
+    {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (Instant.now().toEpochMilli() - openedTimeMillis < openDurationMillis) {
+                    return false;
+                }
+                LOG.info("Sending a request to test whether the {} has recovered.", name);
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                // A probe request is already in progress
+                return false;
+        }
+    }
+
+    public synchronized void onSuccess()
+    {
+        if (state != State.CLOSED) {
+            LOG.info("The {} has recovered.", name);
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void onFailure()
+    {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            LOG.warn("Requests to the {} will not be sent for {} ms after {} consecutive failures.",
+                     name, openDurationMillis, consecutiveFailures);
+            state = State.OPEN;
+            openedTimeMillis = Instant.now().toEpochMilli();
+        }
+    }
+
+    public synchronized boolean isOpen()
+    {
+        return state != State.CLOSED;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.workflow;
+
+import com.github.cafdataprocessing.workflow.model.Condition;
+import com.google.common.base.Strings;
+import com.google.gson.Gson;
+import com.hpe.caf.api.ConfigurationException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Validates declarative action conditions and compiles them to the condition functions used by the workflow script.
+ *
+ * A compiled condition is a function of the document and the workflow arguments which uses the field condition functions of the
+ * workflow control script, so it is evaluated in the same way as a condition function written by hand.
+ */
+final class ConditionCompiler
+{
+    private static final Gson GSON = new Gson();
+
+    private ConditionCompiler()
+    {
+    }
+
+    /**
+     * Compiles the condition to the source of a JavaScript function expression.
+     *
+     * @param actionName The name of the action that the condition belongs to, used in error messages.
+     * @param condition The condition.
+     * @return The source of a function taking the document and the workflow arguments.
+     * @throws ConfigurationException if the condition is not valid.
+     */
+    public static String compile(final String actionName, final Condition condition) throws ConfigurationException
+    {
+        return "function (document, args) {\nreturn " + compileExpression(actionName, condition) + ";\n}";
+    }
+
+    private static String compileExpression(final String actionName, final Condition condition) throws ConfigurationException
+    {
+        if (condition == null) {
+            throw invalidCondition(actionName, "A condition must not be empty.");
+        }
+
+        final List<String> expressions = new ArrayList<>(1);
+        if (condition.getAll() != null) {
+            expressions.add(compileExpressions(actionName, condition.getAll(), " && ", "true"));
+        }
+        if (condition.getAny() != null) {
+            expressions.add(compileExpressions(actionName, condition.getAny(), " || ", "false"));
+        }
+        if (condition.getNot() != null) {
+            expressions.add("!" + compileExpression(actionName, condition.getNot()));
+        }
+        if (condition.getFieldExists() != null) {
+            expressions.add(String.format("fieldExists(document, %s)",
+                                          toLiteral(requireValue(actionName, "fieldExists", condition.getFieldExists()))));
+        }
+        if (condition.getFieldEquals() != null) {
+            final Condition.FieldValue fieldEquals = condition.getFieldEquals();
+            expressions.add(String.format("fieldHasAnyStringValue(document, %s, [%s])",
+                                          toLiteral(requireValue(actionName, "fieldEquals.field", fieldEquals.getField())),
+                                          toLiteral(requireValue(actionName, "fieldEquals.value", fieldEquals.getValue()))));
+        }
+        if (condition.getFieldIn() != null) {
+            final Condition.FieldValues fieldIn = condition.getFieldIn();
+            if (fieldIn.getValues() == null || fieldIn.getValues().isEmpty()) {
+                throw invalidCondition(actionName, "fieldIn.values must not be empty.");
+            }
+            final List<String> values = new ArrayList<>(fieldIn.getValues().size());
+            for (final String value : fieldIn.getValues()) {
+                values.add(toLiteral(requireValue(actionName, "fieldIn.values", value)));
+            }
+            expressions.add(String.format("fieldHasAnyStringValue(document, %s, [%s])",
+                                          toLiteral(requireValue(actionName, "fieldIn.field", fieldIn.getField())),
+                                          String.join(", ", values)));
+        }
+        if (condition.getArgumentEquals() != null) {
+            final Condition.ArgumentValue argumentEquals = condition.getArgumentEquals();
+            expressions.add(String.format("(args[%s] === %s)",
+                                          toLiteral(requireValue(actionName, "argumentEquals.argument",
+                                                                 argumentEquals.getArgument())),
+                                          toLiteral(requireValue(actionName, "argumentEquals.value",
+                                                                 argumentEquals.getValue()))));
+        }
+
+        if (expressions.size() != 1) {
+            throw invalidCondition(actionName, String.format(
+                "A condition must specify exactly one of all, any, not, fieldExists, fieldEquals, fieldIn or argumentEquals, "
+                + "but %s were specified.", expressions.size()));
+        }
+        return expressions.get(0);
+    }
+
+    private static String compileExpressions(
+        final String actionName,
+        final List<Condition> conditions,
+        final String operator,
+        final String emptyValue
+    ) throws ConfigurationException
+    {
+        if (conditions.isEmpty()) {
+            return emptyValue;
+        }
+        final List<String> expressions = new ArrayList<>(conditions.size());
+        for (final Condition condition : conditions) {
+            expressions.add(compileExpression(actionName, condition));
+        }
+        return "(" + String.join(operator, expressions) + ")";
+    }
+
+    private static String requireValue(final String actionName, final String property, final String value)
+        throws ConfigurationException
+    {
+        if (Strings.isNullOrEmpty(value)) {
+            throw invalidCondition(actionName, String.format("%s must not be empty.", property));
+        }
+        return value;
+    }
+
+    private static String toLiteral(final String value)
+    {
+        return GSON.toJson(value);
+    }
+
+    private static ConfigurationException invalidCondition(final String actionName, final String reason)
+    {
+        return new ConfigurationException(String.format("Invalid condition on action [%s]. %s", actionName, reason));
+    }
+}
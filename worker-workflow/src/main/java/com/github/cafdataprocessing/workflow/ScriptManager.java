@@ -21,13 +21,29 @@ import com.hpe.caf.worker.document.model.Script;
 import com.hpe.caf.worker.document.model.ScriptEngineType;
 import com.hpe.caf.worker.document.model.Scripts;
 
+import java.io.Closeable;
 import javax.script.ScriptException;
 
-public class ScriptManager {
+public class ScriptManager implements Closeable {
+    private final WorkflowScriptCache workflowScriptCache;
+
+    public ScriptManager() {
+        this(null);
+    }
+
+    /**
+     * @param workflowScriptCache If supplied, the document is routed using the cached compiled workflow script rather than by
+     *                            loading a temporary copy of the workflow script onto the task.
+     */
+    public ScriptManager(final WorkflowScriptCache workflowScriptCache) {
+        this.workflowScriptCache = workflowScriptCache;
+    }
+
     /**
      * Sets the workflow script used in evaluating a document on the task, also sets a temporary script used for evaluating which worker
      * to send the document to next. The temporary script is used to remove the need for datastore retrieval of the script before
-     * processing.
+     * processing. If a workflow script cache is in use then the temporary script is not added, and the cached script is evaluated
+     * against the document instead. The temporary script is only loaded, not installed, so it is not passed on to the next worker.
      *
      * @param workflow The workflow.
      * @param document The document used to provide access to the task.
@@ -36,16 +52,41 @@ public class ScriptManager {
     public void applyScriptToDocument(final Workflow workflow, final Document document) throws ScriptException {
         final Scripts scripts = document.getTask().getScripts();
 
-        // Add temporary script to the task using the setScriptInline setter.
-        final Script tempWorkflowScript = scripts.add();
-        tempWorkflowScript.setName("temp-workflow.js");
-        tempWorkflowScript.setScriptInline(workflow.getWorkflowScript(), ScriptEngineType.GRAAL_JS);
-        tempWorkflowScript.load();
+        if (workflowScriptCache == null) {
+            // Add temporary script to the task using the setScriptInline setter.
+            final Script tempWorkflowScript = scripts.add();
+            tempWorkflowScript.setName("temp-workflow.js");
+            tempWorkflowScript.setScriptInline(workflow.getWorkflowScript(), ScriptEngineType.GRAAL_JS);
+            tempWorkflowScript.load();
+        }
 
         // Add persistent script to the task using the setScriptByReference setter.
         final Script workflowScript = scripts.add();
         workflowScript.setName("workflow.js");
         workflowScript.setScriptByReference(workflow.getStorageReferenceForWorkflowScript(), ScriptEngineType.GRAAL_JS);
         workflowScript.install();
+
+        // The control library is shared by all of the workflows, so it is stored once and installed alongside the actions script.
+        final String controlLibraryStorageReference = workflow.getStorageReferenceForControlLibrary();
+        if (controlLibraryStorageReference != null) {
+            final Script controlLibraryScript = scripts.add();
+            controlLibraryScript.setName("workflow-control.js");
+            controlLibraryScript.setScriptByReference(controlLibraryStorageReference, ScriptEngineType.GRAAL_JS);
+            controlLibraryScript.install();
+        }
+
+        if (workflowScriptCache != null) {
+            workflowScriptCache.processDocument(workflow, document);
+        }
+    }
+
+    /**
+     * Closes the workflow script cache, if one is in use.
+     */
+    @Override
+    public void close() {
+        if (workflowScriptCache != null) {
+            workflowScriptCache.close();
+        }
     }
 }
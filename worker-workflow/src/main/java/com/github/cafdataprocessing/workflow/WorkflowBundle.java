@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.workflow;
+
+import com.github.cafdataprocessing.workflow.model.Action;
+import com.github.cafdataprocessing.workflow.model.ArgumentDefinition;
+import com.github.cafdataprocessing.workflow.model.Workflow;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.hpe.caf.api.ConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * A set of workflows that have been parsed, validated and had their conditions compiled by {@link WorkflowBundleCompiler}, stored
+ * as a single JSON file.
+ *
+ * The action queue names are not part of the bundle, as they are read from the environment of the worker that loads it.
+ */
+final class WorkflowBundle
+{
+    private static final int FORMAT_VERSION = 1;
+    private static final Gson GSON = new Gson();
+
+    private int formatVersion;
+    private List<Entry> workflows;
+
+    private WorkflowBundle()
+    {
+    }
+
+    public WorkflowBundle(final List<Entry> workflows)
+    {
+        this.formatVersion = FORMAT_VERSION;
+        this.workflows = workflows;
+    }
+
+    public List<Entry> getWorkflows()
+    {
+        return workflows;
+    }
+
+    public static WorkflowBundle read(final File bundleFile) throws ConfigurationException
+    {
+        final WorkflowBundle workflowBundle;
+        try (final Reader reader = Files.newBufferedReader(bundleFile.toPath(), StandardCharsets.UTF_8)) {
+            workflowBundle = GSON.fromJson(reader, WorkflowBundle.class);
+        } catch (final IOException | JsonParseException ex) {
+            throw new ConfigurationException(String.format("Could not read the workflow bundle [%s].", bundleFile), ex);
+        }
+        if (workflowBundle == null || workflowBundle.formatVersion != FORMAT_VERSION || workflowBundle.workflows == null) {
+            throw new ConfigurationException(String.format(
+                "The workflow bundle [%s] was not written by this version of the workflow bundle compiler.", bundleFile));
+        }
+        return workflowBundle;
+    }
+
+    public void write(final File bundleFile) throws IOException
+    {
+        try (final Writer writer = Files.newBufferedWriter(bundleFile.toPath(), StandardCharsets.UTF_8)) {
+            GSON.toJson(this, writer);
+        }
+    }
+
+    public static final class Entry
+    {
+        private String name;
+        private String fileHash;
+        private List<ArgumentDefinition> arguments;
+        private List<Action> actions;
+        private String actionConditionsScript;
+
+        private Entry()
+        {
+        }
+
+        /**
+         * @param name The name of the workflow.
+         * @param fileHash The hash of the workflow file, so that an unchanged file is not reloaded when workflows are reloaded.
+         * @param workflow The parsed and validated workflow.
+         * @param actionConditionsScript The compiled conditions of the workflow actions.
+         */
+        public Entry(final String name, final String fileHash, final Workflow workflow, final String actionConditionsScript)
+        {
+            this.name = name;
+            this.fileHash = fileHash;
+            this.arguments = workflow.getArguments();
+            this.actions = workflow.getActions();
+            this.actionConditionsScript = actionConditionsScript;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getFileHash()
+        {
+            return fileHash;
+        }
+
+        public String getActionConditionsScript()
+        {
+            return actionConditionsScript;
+        }
+
+        /**
+         * Creates a new workflow from the entry, which does not yet have its scripts.
+         */
+        public Workflow toWorkflow()
+        {
+            final Workflow workflow = new Workflow();
+            workflow.setArguments(arguments);
+            workflow.setActions(actions);
+            return workflow;
+        }
+    }
+}
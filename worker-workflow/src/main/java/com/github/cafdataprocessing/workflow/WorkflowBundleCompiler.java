@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.workflow;
+
+import com.github.cafdataprocessing.workflow.model.Workflow;
+import com.hpe.caf.api.ConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles a directory of workflow files into a workflow bundle, so that invalid workflows are reported when the workflows are
+ * built rather than when the worker starts, and so that the worker can load the workflows without parsing and validating them.
+ *
+ * Usage: {@code java -cp <worker classpath> com.github.cafdataprocessing.workflow.WorkflowBundleCompiler <workflows directory>
+ * <bundle file>}
+ */
+public final class WorkflowBundleCompiler
+{
+    private WorkflowBundleCompiler()
+    {
+    }
+
+    public static void main(final String[] args)
+    {
+        if (args.length != 2) {
+            System.err.println("Usage: WorkflowBundleCompiler <workflows directory> <bundle file>");
+            System.exit(2);
+        }
+        try {
+            final int workflowCount = compile(new File(args[0]), new File(args[1]));
+            System.out.println(String.format("Compiled %s workflows into [%s].", workflowCount, args[1]));
+        } catch (final ConfigurationException ex) {
+            System.err.println(ex.getMessage());
+            for (final Throwable suppressed : ex.getSuppressed()) {
+                System.err.println(suppressed.getMessage());
+            }
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compiles the workflow files in a directory into a bundle. Every file is compiled before any failures are reported, so that
+     * all of the invalid workflows are reported at once.
+     *
+     * @param workflowsDirectory The directory containing the workflow files.
+     * @param bundleFile The bundle file to write.
+     * @return The number of workflows compiled.
+     * @throws ConfigurationException if any of the workflows are not valid, with the failures after the first added as suppressed
+     * exceptions, or if the bundle could not be written.
+     */
+    public static int compile(final File workflowsDirectory, final File bundleFile) throws ConfigurationException
+    {
+        final File[] workflowFiles = workflowsDirectory.listFiles(WorkflowManager.WORKFLOW_FILE_FILTER);
+        if (workflowFiles == null) {
+            throw new ConfigurationException(String.format("Could not read the workflows directory [%s].", workflowsDirectory));
+        }
+        Arrays.sort(workflowFiles);
+
+        final List<WorkflowBundle.Entry> entries = new ArrayList<>(workflowFiles.length);
+        ConfigurationException failure = null;
+        for (final File workflowFile : workflowFiles) {
+            final String workflowName = WorkflowManager.getWorkflowName(workflowFile);
+            try {
+                final String workflowFileContent = WorkflowManager.readWorkflowFile(workflowFile);
+                final Workflow workflow = WorkflowManager.parseWorkflow(workflowFileContent);
+                entries.add(new WorkflowBundle.Entry(
+                    workflowName,
+                    WorkflowManager.hashWorkflowFile(workflowFileContent),
+                    workflow,
+                    WorkflowManager.buildActionConditionsScript(workflow.getActions())));
+            } catch (final ConfigurationException | RuntimeException ex) {
+                final ConfigurationException invalidWorkflow = new ConfigurationException(
+                    String.format("Workflow [%s] is not valid. %s", workflowName, ex.getMessage()), ex);
+                if (failure == null) {
+                    failure = invalidWorkflow;
+                } else {
+                    failure.addSuppressed(invalidWorkflow);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (entries.isEmpty()) {
+            throw new ConfigurationException(String.format("No workflows found in [%s].", workflowsDirectory));
+        }
+
+        try {
+            new WorkflowBundle(entries).write(bundleFile);
+        } catch (final IOException ex) {
+            throw new ConfigurationException(String.format("Could not write the workflow bundle [%s].", bundleFile), ex);
+        }
+        return entries.size();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.workflow;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the workflows directory and runs a callback on a daemon thread whenever its contents change.
+ *
+ * Changes that happen close together, such as a file being written in several steps or several files being replaced at once,
+ * result in a single callback.
+ */
+final class WorkflowDirectoryWatcher implements Closeable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(WorkflowDirectoryWatcher.class);
+    private static final long QUIET_PERIOD_MILLIS = 500;
+
+    private final Path directory;
+    private final WatchService watchService;
+    private final Runnable onChange;
+
+    public WorkflowDirectoryWatcher(final Path directory, final Runnable onChange) throws IOException
+    {
+        this.directory = directory;
+        this.watchService = directory.getFileSystem().newWatchService();
+        this.onChange = onChange;
+        directory.register(watchService,
+                           StandardWatchEventKinds.ENTRY_CREATE,
+                           StandardWatchEventKinds.ENTRY_MODIFY,
+                           StandardWatchEventKinds.ENTRY_DELETE);
+
+        final Thread thread = new Thread(this::watch, "workflow-directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watch()
+    {
+        try {
+            while (true) {
+                WatchKey watchKey = watchService.take();
+                do {
+                    watchKey.pollEvents();
+                    if (!watchKey.reset()) {
+                        LOG.warn("The workflows directory [{}] can no longer be watched for changes.", directory);
+                        return;
+                    }
+                    watchKey = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+                } while (watchKey != null);
+
+                try {
+                    onChange.run();
+                } catch (final RuntimeException ex) {
+                    LOG.error("Failed to reload the workflows after the workflows directory changed.", ex);
+                }
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (final ClosedWatchServiceException ex) {
+            LOG.debug("Stopped watching the workflows directory [{}].", directory);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        watchService.close();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.workflow;
+
+import com.google.common.base.CharMatcher;
+import com.hpe.caf.worker.document.model.Document;
+import com.hpe.caf.worker.document.model.FieldValue;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import org.graalvm.polyglot.Value;
+
+/**
+ * Field condition functions used by the workflow control script.
+ *
+ * The workflow control script delegates to these functions when they are available, so that field values are compared in Java
+ * rather than being passed into the script one at a time.
+ */
+public final class WorkflowFunctions
+{
+    private WorkflowFunctions()
+    {
+    }
+
+    public static boolean isEmptyMap(final String mapValue)
+    {
+        return mapValue == null || mapValue.isEmpty() || CharMatcher.whitespace().removeFrom(mapValue).equals("{}");
+    }
+
+    /**
+     * Checks whether the first value of the field is the specified string.
+     */
+    public static boolean fieldHasStringValue(final Document document, final String fieldName, final String value)
+    {
+        final Iterator<FieldValue> fieldValues = document.getField(fieldName).getValues().iterator();
+        return fieldValues.hasNext() && isFieldValueEqualToValue(fieldValues.next(), value);
+    }
+
+    /**
+     * Checks whether any value of the field is one of the specified strings.
+     *
+     * @param document The document.
+     * @param fieldName The name of the field.
+     * @param values An array, or another iterable such as a Java collection, of the strings to look for. Elements which are not
+     * strings are ignored.
+     * @return true if any value of the field matches one of the strings.
+     */
+    public static boolean fieldHasAnyStringValue(final Document document, final String fieldName, final Value values)
+    {
+        final Set<String> valueSet = getStringValues(values);
+        if (valueSet.isEmpty()) {
+            return false;
+        }
+        for (final FieldValue fieldValue : document.getField(fieldName).getValues()) {
+            if (fieldValue.isStringValue() && valueSet.contains(fieldValue.getStringValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<String> getStringValues(final Value values)
+    {
+        final Set<String> valueSet = new HashSet<>();
+        if (values.hasArrayElements()) {
+            final long valueCount = values.getArraySize();
+            for (long index = 0; index < valueCount; index++) {
+                addStringValue(valueSet, values.getArrayElement(index));
+            }
+        } else if (values.hasIterator()) {
+            final Value iterator = values.getIterator();
+            while (iterator.hasIteratorNextElement()) {
+                addStringValue(valueSet, iterator.getIteratorNextElement());
+            }
+        } else if (values.isHostObject() && values.asHostObject() instanceof Iterable) {
+            for (final Object value : (Iterable<?>) values.asHostObject()) {
+                if (value instanceof String) {
+                    valueSet.add((String) value);
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("The values to look for must be an array or an iterable.");
+        }
+        return valueSet;
+    }
+
+    private static void addStringValue(final Set<String> valueSet, final Value value)
+    {
+        if (value.isString()) {
+            valueSet.add(value.asString());
+        }
+    }
+
+    private static boolean isFieldValueEqualToValue(final FieldValue fieldValue, final String value)
+    {
+        return fieldValue.isStringValue() && fieldValue.getStringValue().equals(value);
+    }
+}
@@ -16,8 +16,17 @@
 package com.github.cafdataprocessing.workflow;
 
 import com.github.cafdataprocessing.workflow.model.Action;
+import com.github.cafdataprocessing.workflow.model.ArgumentDefinition;
 import com.github.cafdataprocessing.workflow.model.Workflow;
 import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.common.io.Resources;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -26,127 +35,658 @@ import com.hpe.caf.api.worker.DataStore;
 import com.hpe.caf.api.worker.DataStoreException;
 import com.hpe.caf.worker.document.model.Application;
 import org.apache.commons.io.FileUtils;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Source;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.Yaml;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
-public class WorkflowManager {
+public class WorkflowManager implements Closeable {
 
     private static final Logger LOG = LoggerFactory.getLogger(WorkflowManager.class);
+    /**
+     * The actions script is installed on the task alongside the control library, so it must install itself in order to be passed on
+     * to the next worker.
+     */
+    private static final String ACTIONS_SCRIPT_EVENT_HANDLERS
+        = "function onProcessTask() {\n    thisScript.install();\n}\n"
+        + "function onError() {\n    thisScript.install();\n}\n";
+    /**
+     * The actions script exposes its actions as its script object, so that the control library can use the actions that a downstream
+     * worker has already loaded rather than evaluating the actions script again.
+     */
+    private static final String ACTIONS_SCRIPT_OBJECT
+        = "thisScriptObject = {actions: ACTIONS, actionIndex: ACTION_INDEX, conditionScripts: ACTION_CONDITION_SCRIPTS};\n";
+    private static final Pattern CONDITION_FUNCTION_PATTERN = Pattern.compile("function\\s+condition\\s*\\(");
+
+    /**
+     * The workflow control scripts are read from the classpath once, and add-failures.js is escaped once, however many workflows
+     * are loaded.
+     */
+    private static final Supplier<String> WORKFLOW_CONTROL_SCRIPT = Suppliers.memoize(
+        () -> loadScriptResource("workflow-control.js", "Could not obtain workflow-control.js"));
+    private static final Supplier<String> ADD_FAILURES_SCRIPT = Suppliers.memoize(
+        () -> loadScriptResource("add-failures.js", "Could not obtain add add-failures.js").replaceAll("`", "\\`"));
+    private static final Pattern WORKFLOW_FILE_EXTENSION_PATTERN = Pattern.compile(".yaml$");
+    /**
+     * The storage references of the scripts stored in each data store, by the SHA-256 hash of the script, so that a script is only
+     * stored once by a worker process however many workflow managers load it, and however often its workflow is reloaded.
+     */
+    private static final LoadingCache<DataStore, Map<String, String>> STORED_SCRIPT_REFERENCES = CacheBuilder.newBuilder()
+        .weakKeys()
+        .build(CacheLoader.from(() -> new ConcurrentHashMap<>()));
+    static final FilenameFilter WORKFLOW_FILE_FILTER = (final File dir, final String name) -> name.endsWith(".yaml");
+    private static final Gson GSON = new GsonBuilder().registerTypeAdapter(Action.class, new ActionTypeAdapter())
+        .setPrettyPrinting().create();
 
-    private final Map<String, Workflow> workflows;
     private final DataStore dataStore;
+    private final Map<String, String> storedScriptReferences;
+    private final String workflowsDirectory;
+    private final String controlLibraryScript;
+    /**
+     * The hashes of the workflow files that the current workflows were loaded from, so that unchanged files are not reloaded.
+     */
+    private final Map<String, String> workflowFileHashes;
+    /**
+     * An immutable map, which is replaced as a whole when workflows are reloaded so that readers never need to lock it. Not used
+     * when workflows are loaded lazily.
+     */
+    private volatile Map<String, Workflow> workflows;
+    /**
+     * The workflows that have been loaded, when workflows are loaded lazily, or null otherwise. Concurrent requests for a workflow
+     * that has not been loaded yet wait for a single load of it.
+     */
+    private final LoadingCache<String, LoadedWorkflow> workflowCache;
+    /**
+     * An immutable map of workflow names to the files that they are loaded from when workflows are loaded lazily, which is
+     * replaced as a whole when workflows are reloaded.
+     */
+    private volatile Map<String, File> workflowFileIndex;
+    /**
+     * Watches the workflows directory when workflows are reloaded when their files change, or null otherwise.
+     */
+    private final WorkflowDirectoryWatcher workflowDirectoryWatcher;
 
     public WorkflowManager(final Application application, final String workflowDirectory, final String contextScriptFilePath)
                            throws ConfigurationException {
+        this(application, createConfiguration(workflowDirectory, contextScriptFilePath));
+    }
+
+    public WorkflowManager(final Application application, final WorkflowWorkerConfiguration configuration)
+                           throws ConfigurationException {
         dataStore = application.getService(DataStore.class);
-        workflows = getWorkflows(workflowDirectory, contextScriptFilePath);
+        storedScriptReferences = STORED_SCRIPT_REFERENCES.getUnchecked(dataStore);
+        workflowsDirectory = configuration.getWorkflowsDirectory();
+        controlLibraryScript = buildControlLibraryScript(configuration.getContextScriptFilePath());
+        workflowFileHashes = new HashMap<>();
+        if (!Strings.isNullOrEmpty(configuration.getWorkflowBundlePath())) {
+            workflows = getBundledWorkflows(configuration.getWorkflowBundlePath(), configuration.getWorkflowLoadThreads());
+            workflowCache = null;
+        } else if (configuration.isLazyWorkflowLoading()) {
+            workflowFileIndex = indexWorkflows();
+            workflowCache = CacheBuilder.newBuilder()
+                .maximumSize(configuration.getWorkflowCacheMaxEntries())
+                .build(new CacheLoader<String, LoadedWorkflow>()
+                {
+                    @Override
+                    public LoadedWorkflow load(final String workflowName) throws ConfigurationException
+                    {
+                        return loadIndexedWorkflow(workflowName);
+                    }
+                });
+            LOG.info("Indexed {} workflows, which will be loaded when they are first requested.", workflowFileIndex.size());
+        } else {
+            workflows = getWorkflows(configuration.getWorkflowLoadThreads());
+            workflowCache = null;
+        }
+        workflowDirectoryWatcher = configuration.isReloadWorkflows() ? watchWorkflowsDirectory() : null;
     }
 
+    /**
+     * Gets a workflow, loading it first if workflows are loaded lazily and it has not been loaded yet.
+     *
+     * @return The workflow, or null if there is no such workflow or it could not be loaded.
+     */
     public Workflow get(final String workflowName){
-        return workflows.get(workflowName);
+        if (workflowCache == null) {
+            return workflows.get(workflowName);
+        }
+        if (!workflowFileIndex.containsKey(workflowName)) {
+            return null;
+        }
+        try {
+            return workflowCache.getUnchecked(workflowName).workflow;
+        } catch (final UncheckedExecutionException ex) {
+            LOG.error(String.format("Workflow [%s] could not be loaded.", workflowName), ex.getCause());
+            return null;
+        }
+    }
+
+    private static WorkflowWorkerConfiguration createConfiguration(
+        final String workflowDirectory,
+        final String contextScriptFilePath
+    ) {
+        final WorkflowWorkerConfiguration configuration = new WorkflowWorkerConfiguration();
+        configuration.setWorkflowsDirectory(workflowDirectory);
+        configuration.setContextScriptFilePath(contextScriptFilePath);
+        return configuration;
     }
 
     private static File getContextScriptFile(final String contextScriptFilePath) {
         return contextScriptFilePath != null ? new File(contextScriptFilePath) : null;
     }
 
-    private Map<String, Workflow> getWorkflows(final String workflowsDirectory, final String contextScriptFilePath)
-            throws ConfigurationException {
-
-        final Map<String, Workflow> workflowMap = new HashMap<>();
-        final Yaml yaml = new Yaml();
-        final Gson gson = new GsonBuilder().registerTypeAdapter(Action.class, new ActionTypeAdapter())
-            .setPrettyPrinting().create();
+    private Map<String, Workflow> getWorkflows(final int workflowLoadThreads) throws ConfigurationException {
 
         final File dir = new File(workflowsDirectory);
         if(Strings.isNullOrEmpty(dir.toString())){
             throw new ConfigurationException(String.format("No workflows found in [%s].", workflowsDirectory));
         }
-        final File contextScriptFile = getContextScriptFile(contextScriptFilePath);
-        final FilenameFilter filter = (final File dir1, final String name) -> name.endsWith(".yaml");
-        for (final File workflowFile : dir.listFiles(filter)) {
-
+        // The files are sorted so that the same failure is reported whichever order they are loaded in
+        final File[] workflowFiles = dir.listFiles(WORKFLOW_FILE_FILTER);
+        Arrays.sort(workflowFiles);
+        for (final File workflowFile : workflowFiles) {
             if(!workflowFile.exists()){
                 throw new RuntimeException(String.format("File [%s] does not exist.",
                         workflowFile.toPath().toAbsolutePath()));
             }
+        }
+
+        final List<WorkflowLoader> workflowLoaders = new ArrayList<>(workflowFiles.length);
+        for (final File workflowFile : workflowFiles) {
+            workflowLoaders.add(() -> loadWorkflow(workflowFile));
+        }
+        return toWorkflowMap(loadWorkflows(workflowLoaders, workflowLoadThreads));
+    }
 
-            try (final FileInputStream fis = new FileInputStream(workflowFile)) {
-                final Workflow workflow = yaml.loadAs(fis, Workflow.class);
+    /**
+     * Loads the workflows from a bundle written by {@link WorkflowBundleCompiler}, which have already been parsed and validated.
+     */
+    private Map<String, Workflow> getBundledWorkflows(final String workflowBundlePath, final int workflowLoadThreads)
+        throws ConfigurationException {
+        final WorkflowBundle workflowBundle = WorkflowBundle.read(new File(workflowBundlePath));
+        final List<WorkflowLoader> workflowLoaders = new ArrayList<>(workflowBundle.getWorkflows().size());
+        for (final WorkflowBundle.Entry entry : workflowBundle.getWorkflows()) {
+            workflowLoaders.add(() -> new LoadedWorkflow(
+                entry.getName(),
+                loadWorkflow(entry.toWorkflow(), entry.getActionConditionsScript()),
+                entry.getFileHash()));
+        }
+        final Map<String, Workflow> workflowMap = toWorkflowMap(loadWorkflows(workflowLoaders, workflowLoadThreads));
+        LOG.info("Loaded {} workflows from the workflow bundle [{}].", workflowMap.size(), workflowBundlePath);
+        return workflowMap;
+    }
+
+    private Map<String, Workflow> toWorkflowMap(final List<LoadedWorkflow> loadedWorkflows) throws ConfigurationException {
+        final Map<String, Workflow> workflowMap = new HashMap<>();
+        for (final LoadedWorkflow loadedWorkflow : loadedWorkflows) {
+            workflowMap.put(loadedWorkflow.name, loadedWorkflow.workflow);
+            workflowFileHashes.put(loadedWorkflow.name, loadedWorkflow.fileHash);
+        }
 
-                validateWorkflow(workflow);
+        if(workflowMap.isEmpty()){
+            throw new ConfigurationException("No workflows available.");
+        }
 
-                final StringBuilder stringBuilder = new StringBuilder();
-                stringBuilder.append(String.format("var ACTIONS = %s;\n", gson.toJson(workflow.getActions())));
+        return Collections.unmodifiableMap(workflowMap);
+    }
 
-                final String contextScriptFileContent;
-                if (contextScriptFile != null) {
-                    if (contextScriptFile.exists()) {
-                        contextScriptFileContent = FileUtils.readFileToString(contextScriptFile,
-                                                                                           StandardCharsets.UTF_8);
-                        stringBuilder.append(contextScriptFileContent);
+    /**
+     * Loads the workflows, using a bounded pool of threads when there are several of them, as each workflow spends most of its
+     * time storing its script. If any workflows cannot be loaded, the failure of the first of them is thrown once every workflow
+     * has been attempted, with the other failures added as suppressed exceptions.
+     */
+    private static List<LoadedWorkflow> loadWorkflows(final List<WorkflowLoader> workflowLoaders, final int workflowLoadThreads)
+        throws ConfigurationException {
+        final List<LoadedWorkflow> loadedWorkflows = new ArrayList<>(workflowLoaders.size());
+        if (workflowLoadThreads <= 1 || workflowLoaders.size() <= 1) {
+            for (final WorkflowLoader workflowLoader : workflowLoaders) {
+                loadedWorkflows.add(workflowLoader.load());
+            }
+            return loadedWorkflows;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(workflowLoadThreads, workflowLoaders.size()),
+            new ThreadFactoryBuilder().setNameFormat("workflow-loader-%d").setDaemon(true).build());
+        try {
+            final List<Future<LoadedWorkflow>> futures = new ArrayList<>(workflowLoaders.size());
+            for (final WorkflowLoader workflowLoader : workflowLoaders) {
+                futures.add(executor.submit(workflowLoader::load));
+            }
+
+            Exception failure = null;
+            for (final Future<LoadedWorkflow> future : futures) {
+                try {
+                    loadedWorkflows.add(future.get());
+                } catch (final ExecutionException ex) {
+                    final Exception cause = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                    if (failure == null) {
+                        failure = cause;
                     } else {
-                        LOG.warn("The context script file from the path {} does not exist.", contextScriptFilePath);
-                        contextScriptFileContent = null;
+                        failure.addSuppressed(cause);
                     }
-                } else {
-                    contextScriptFileContent = null;
                 }
+            }
+            if (failure instanceof ConfigurationException) {
+                throw (ConfigurationException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure != null) {
+                throw new ConfigurationException("Could not load the workflows.", failure);
+            }
+            return loadedWorkflows;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ConfigurationException("Interrupted while loading the workflows.", ex);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-                try {
-                    stringBuilder.append(Resources.toString(Resources.getResource("workflow-control.js"),
-                            StandardCharsets.UTF_8));
-                } catch (final IOException e) {
-                    throw new RuntimeException("Could not obtain workflow-control.js");
-                }
+    /**
+     * Maps the names of the workflows in the workflows directory to their files, without loading them.
+     */
+    private Map<String, File> indexWorkflows() throws ConfigurationException {
+        final File[] workflowFiles = new File(workflowsDirectory).listFiles(WORKFLOW_FILE_FILTER);
+        if (workflowFiles == null) {
+            throw new ConfigurationException(String.format("No workflows found in [%s].", workflowsDirectory));
+        }
+        final Map<String, File> workflowFileMap = indexWorkflowFiles(workflowFiles);
+        if (workflowFileMap.isEmpty()) {
+            throw new ConfigurationException("No workflows available.");
+        }
+        return workflowFileMap;
+    }
 
-                try {
-                    final String addFailures = Resources.toString(Resources.getResource("add-failures.js"),
-                            StandardCharsets.UTF_8).replaceAll("`", "\\`");
-                    stringBuilder.append("thisScriptObject = String.raw`\n").append(addFailures);
-                    if(contextScriptFileContent != null) {
-                        stringBuilder.append(contextScriptFileContent);
-                    }
-                    stringBuilder.append("\n`;");
-                } catch (final IOException e) {
-                    throw new RuntimeException("Could not obtain add add-failures.js");
+    private static Map<String, File> indexWorkflowFiles(final File[] workflowFiles) {
+        final Map<String, File> workflowFileMap = new HashMap<>();
+        for (final File workflowFile : workflowFiles) {
+            workflowFileMap.put(getWorkflowName(workflowFile), workflowFile);
+        }
+        return Collections.unmodifiableMap(workflowFileMap);
+    }
+
+    private LoadedWorkflow loadIndexedWorkflow(final String workflowName) throws ConfigurationException {
+        final File workflowFile = workflowFileIndex.get(workflowName);
+        if (workflowFile == null) {
+            throw new ConfigurationException(String.format("Workflow [%s] does not exist.", workflowName));
+        }
+        final String workflowFileContent = readWorkflowFile(workflowFile);
+        return loadWorkflowOrFailure(workflowName, workflowFileContent, hashWorkflowFile(workflowFileContent));
+    }
+
+    /**
+     * Loads a workflow when workflows are loaded lazily. A workflow that cannot be loaded is reported once, and is remembered as
+     * having failed along with the hash of its file, so that it is not loaded again for every document until its file changes.
+     */
+    private LoadedWorkflow loadWorkflowOrFailure(
+        final String workflowName,
+        final String workflowFileContent,
+        final String workflowFileHash
+    ) {
+        try {
+            return new LoadedWorkflow(workflowName, loadWorkflow(workflowFileContent), workflowFileHash);
+        } catch (final ConfigurationException | RuntimeException ex) {
+            LOG.error(String.format("Workflow [%s] could not be loaded. It will not be loaded again until its file changes and the "
+                + "workflows are reloaded.", workflowName), ex);
+            return new LoadedWorkflow(workflowName, null, workflowFileHash);
+        }
+    }
+
+    private LoadedWorkflow loadWorkflow(final File workflowFile) throws ConfigurationException {
+        final String workflowFileContent = readWorkflowFile(workflowFile);
+        final String workflowName = getWorkflowName(workflowFile);
+        return new LoadedWorkflow(
+            workflowName, loadWorkflow(workflowFileContent), hashWorkflowFile(workflowFileContent));
+    }
+
+    static String getWorkflowName(final File workflowFile) {
+        return WORKFLOW_FILE_EXTENSION_PATTERN.matcher(workflowFile.getName()).replaceAll("");
+    }
+
+    static String hashWorkflowFile(final String workflowFileContent) {
+        return Hashing.sha256().hashString(workflowFileContent, StandardCharsets.UTF_8).toString();
+    }
+
+    private static String hashScript(final String script) {
+        return Hashing.sha256().hashString(script, StandardCharsets.UTF_8).toString();
+    }
+
+    static String readWorkflowFile(final File workflowFile) throws ConfigurationException {
+        try {
+            return FileUtils.readFileToString(workflowFile, StandardCharsets.UTF_8);
+        }
+        catch(final IOException ex){
+            throw new ConfigurationException(
+                    String.format("Could not access workflow [%s] in configured directory.",
+                            workflowFile.toPath().toAbsolutePath()), ex);
+        }
+    }
+
+    /**
+     * Parses and validates a workflow, builds its script and stores the script in the datastore.
+     */
+    private Workflow loadWorkflow(final String workflowFileContent) throws ConfigurationException {
+        final Workflow workflow = parseWorkflow(workflowFileContent);
+        return loadWorkflow(workflow, buildActionConditionsScript(workflow.getActions()));
+    }
+
+    /**
+     * Parses and validates a workflow file.
+     */
+    static Workflow parseWorkflow(final String workflowFileContent) throws ConfigurationException {
+        final Workflow workflow = new Yaml().loadAs(workflowFileContent, Workflow.class);
+
+        validateWorkflow(workflow);
+
+        return workflow;
+    }
+
+    /**
+     * Builds the script of a parsed workflow and stores the script in the datastore. The action queue names are read from the
+     * environment here, rather than when the workflow is compiled, as the same workflows can be deployed with different queues.
+     */
+    private Workflow loadWorkflow(final Workflow workflow, final String actionConditionsScript) throws ConfigurationException {
+        final StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append(String.format("var ACTIONS = %s;\n", GSON.toJson(workflow.getActions())));
+        stringBuilder.append(String.format("var ACTION_INDEX = %s;\n", GSON.toJson(getActionIndex(workflow.getActions()))));
+        stringBuilder.append(actionConditionsScript);
+        stringBuilder.append(ACTIONS_SCRIPT_OBJECT);
+        stringBuilder.append(ACTIONS_SCRIPT_EVENT_HANDLERS);
+        final String actionsScript = stringBuilder.toString();
+
+        workflow.setActionsScript(actionsScript);
+        workflow.setControlLibraryScript(controlLibraryScript);
+        workflow.setWorkflowScript(actionsScript + controlLibraryScript);
+
+        try {
+            workflow.setStorageReference(storeScript(actionsScript));
+            workflow.setControlLibraryStorageReference(storeScript(controlLibraryScript));
+        }
+        catch (final DataStoreException ex){
+            throw new ConfigurationException("Could not store workflow in configured datastore.", ex);
+        }
+
+        return workflow;
+    }
+
+    /**
+     * Stores a script in the datastore unless a script with the same content has already been stored there.
+     *
+     * @return The storage reference of the script.
+     */
+    private String storeScript(final String script) throws DataStoreException {
+        final String scriptHash = hashScript(script);
+        final String storedScriptReference = storedScriptReferences.get(scriptHash);
+        if (storedScriptReference != null) {
+            return storedScriptReference;
+        }
+        final String storageReference = dataStore.store(script.getBytes(StandardCharsets.UTF_8), "workflow-scripts");
+        // A script stored concurrently by another load is kept, so that every workflow uses the same reference
+        final String concurrentlyStoredScriptReference = storedScriptReferences.putIfAbsent(scriptHash, storageReference);
+        return concurrentlyStoredScriptReference != null ? concurrentlyStoredScriptReference : storageReference;
+    }
+
+    private WorkflowDirectoryWatcher watchWorkflowsDirectory() throws ConfigurationException {
+        final WorkflowDirectoryWatcher watcher;
+        try {
+            watcher = new WorkflowDirectoryWatcher(Paths.get(workflowsDirectory), this::reloadWorkflows);
+        } catch (final IOException ex) {
+            throw new ConfigurationException(
+                String.format("Could not watch the workflows directory [%s] for changes.", workflowsDirectory), ex);
+        }
+        LOG.info("Watching the workflows directory [{}] for changes.", workflowsDirectory);
+        return watcher;
+    }
+
+    /**
+     * Stops watching the workflows directory for changes.
+     */
+    @Override
+    public void close() throws IOException {
+        if (workflowDirectoryWatcher != null) {
+            workflowDirectoryWatcher.close();
+        }
+    }
+
+    /**
+     * Reloads the workflow files that have been added or changed since they were last loaded, and removes the workflows whose files
+     * have been deleted. A workflow file that cannot be loaded is rejected, and the previous version of the workflow, if there is
+     * one, continues to be used.
+     */
+    synchronized void reloadWorkflows() {
+        final File[] workflowFiles = new File(workflowsDirectory).listFiles(WORKFLOW_FILE_FILTER);
+        if (workflowFiles == null) {
+            LOG.error("The workflows directory [{}] could not be read, so the workflows have not been reloaded.", workflowsDirectory);
+            return;
+        }
+        if (workflowCache != null) {
+            reloadCachedWorkflows(workflowFiles);
+            return;
+        }
+
+        final Map<String, Workflow> reloadedWorkflows = new HashMap<>(workflows);
+        final Map<String, String> reloadedWorkflowFileHashes = new HashMap<>(workflowFileHashes);
+        final Set<String> removedWorkflowNames = new HashSet<>(workflows.keySet());
+        for (final File workflowFile : workflowFiles) {
+            final String workflowName = getWorkflowName(workflowFile);
+            removedWorkflowNames.remove(workflowName);
+            try {
+                final String workflowFileContent = readWorkflowFile(workflowFile);
+                final String workflowFileHash = hashWorkflowFile(workflowFileContent);
+                if (workflowFileHash.equals(reloadedWorkflowFileHashes.get(workflowName))) {
+                    continue;
                 }
+                reloadedWorkflows.put(workflowName, loadWorkflow(workflowFileContent));
+                reloadedWorkflowFileHashes.put(workflowName, workflowFileHash);
+                LOG.info("Reloaded workflow [{}].", workflowName);
+            } catch (final ConfigurationException | RuntimeException ex) {
+                LOG.error(String.format("Workflow [%s] could not be reloaded. Any previous version of the workflow will continue "
+                    + "to be used.", workflowName), ex);
+            }
+        }
+        for (final String workflowName : removedWorkflowNames) {
+            reloadedWorkflows.remove(workflowName);
+            reloadedWorkflowFileHashes.remove(workflowName);
+            LOG.info("Removed workflow [{}].", workflowName);
+        }
 
-                workflow.setWorkflowScript(stringBuilder.toString());
+        if (reloadedWorkflows.isEmpty()) {
+            LOG.error("No workflows would be available, so the workflows have not been reloaded.");
+            return;
+        }
+        workflowFileHashes.clear();
+        workflowFileHashes.putAll(reloadedWorkflowFileHashes);
+        workflows = Collections.unmodifiableMap(reloadedWorkflows);
+    }
 
-                workflow.setStorageReference(
-                        dataStore.store(workflow.getWorkflowScript().getBytes(StandardCharsets.UTF_8),
-                                "workflow-scripts"));
+    /**
+     * Re-indexes the workflow files when workflows are loaded lazily. Only the workflows that have already been loaded are
+     * reloaded if their files have changed, and the others are loaded from their new files when they are first requested.
+     */
+    private void reloadCachedWorkflows(final File[] workflowFiles) {
+        final Map<String, File> reloadedWorkflowFileIndex = indexWorkflowFiles(workflowFiles);
+        if (reloadedWorkflowFileIndex.isEmpty()) {
+            LOG.error("No workflows would be available, so the workflows have not been reloaded.");
+            return;
+        }
+        workflowFileIndex = reloadedWorkflowFileIndex;
 
-                final String entryname = workflowFile.getName().replaceAll(".yaml$", "");
-                workflowMap.put(entryname, workflow);
+        for (final LoadedWorkflow loadedWorkflow : new ArrayList<>(workflowCache.asMap().values())) {
+            final File workflowFile = reloadedWorkflowFileIndex.get(loadedWorkflow.name);
+            if (workflowFile == null) {
+                workflowCache.invalidate(loadedWorkflow.name);
+                LOG.info("Removed workflow [{}].", loadedWorkflow.name);
+                continue;
             }
-            catch(final IOException ex){
-                throw new ConfigurationException(
-                        String.format("Could not access workflow [%s] in configured directory.",
-                                workflowFile.toPath().toAbsolutePath(), ex));
+            try {
+                final String workflowFileContent = readWorkflowFile(workflowFile);
+                final String workflowFileHash = hashWorkflowFile(workflowFileContent);
+                if (workflowFileHash.equals(loadedWorkflow.fileHash)) {
+                    continue;
+                }
+                if (loadedWorkflow.workflow == null) {
+                    // The workflow could not be loaded before, so there is no previous version to keep using if it still fails
+                    final LoadedWorkflow reloadedWorkflow
+                        = loadWorkflowOrFailure(loadedWorkflow.name, workflowFileContent, workflowFileHash);
+                    workflowCache.put(loadedWorkflow.name, reloadedWorkflow);
+                    if (reloadedWorkflow.workflow != null) {
+                        LOG.info("Reloaded workflow [{}].", loadedWorkflow.name);
+                    }
+                    continue;
+                }
+                workflowCache.put(loadedWorkflow.name, new LoadedWorkflow(
+                    loadedWorkflow.name, loadWorkflow(workflowFileContent), workflowFileHash));
+                LOG.info("Reloaded workflow [{}].", loadedWorkflow.name);
+            } catch (final ConfigurationException | RuntimeException ex) {
+                LOG.error(String.format("Workflow [%s] could not be reloaded. The previous version of the workflow will continue "
+                    + "to be used.", loadedWorkflow.name), ex);
             }
-            catch (final DataStoreException ex){
-                throw new ConfigurationException("Could not store workflow in configured datastore.", ex);
+        }
+    }
+
+    /**
+     * Builds the workflow control library, which is the same for every workflow, from the context script, workflow-control.js
+     * and add-failures.js.
+     */
+    private static String buildControlLibraryScript(final String contextScriptFilePath) throws ConfigurationException {
+        final String workflowControlScript = WORKFLOW_CONTROL_SCRIPT.get();
+        final String addFailuresScript = ADD_FAILURES_SCRIPT.get();
+
+        final File contextScriptFile = getContextScriptFile(contextScriptFilePath);
+        final String contextScriptFileContent;
+        if (contextScriptFile != null) {
+            if (contextScriptFile.exists()) {
+                try {
+                    contextScriptFileContent = FileUtils.readFileToString(contextScriptFile, StandardCharsets.UTF_8);
+                } catch (final IOException ex) {
+                    throw new ConfigurationException(
+                        String.format("Could not read the context script file [%s].", contextScriptFilePath), ex);
+                }
+            } else {
+                LOG.warn("The context script file from the path {} does not exist.", contextScriptFilePath);
+                contextScriptFileContent = null;
             }
+        } else {
+            contextScriptFileContent = null;
         }
 
-        if(workflowMap.isEmpty()){
-            throw new ConfigurationException("No workflows available.");
+        final int contextScriptLength = contextScriptFileContent != null ? contextScriptFileContent.length() : 0;
+        final StringBuilder stringBuilder = new StringBuilder(
+            2 * contextScriptLength + workflowControlScript.length() + addFailuresScript.length() + 32);
+        if(contextScriptFileContent != null) {
+            stringBuilder.append(contextScriptFileContent);
         }
+        stringBuilder.append(workflowControlScript);
+        stringBuilder.append("thisScriptObject = String.raw`\n").append(addFailuresScript);
+        if(contextScriptFileContent != null) {
+            stringBuilder.append(contextScriptFileContent);
+        }
+        stringBuilder.append("\n`;");
 
-        return workflowMap;
+        return stringBuilder.toString();
+    }
+
+    private static String loadScriptResource(final String resourceName, final String errorMessage) {
+        try {
+            return Resources.toString(Resources.getResource(resourceName), StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            throw new RuntimeException(errorMessage);
+        }
+    }
+
+    /**
+     * Maps each action name to the index of the action, so that the workflow script does not have to search ACTIONS by name.
+     */
+    private static Map<String, Integer> getActionIndex(final List<Action> actions) {
+        final Map<String, Integer> actionIndex = new LinkedHashMap<>();
+        for (int index = 0; index < actions.size(); index++) {
+            actionIndex.put(actions.get(index).getName(), index);
+        }
+        return actionIndex;
+    }
+
+    /**
+     * Compiles each action's condition once, as part of the workflow script, so that the routing logic in workflow-control.js can
+     * call ACTIONS[i].condition directly rather than evaluating the function source for every document and subdocument.
+     * Declarative conditions are compiled to the equivalent condition function. The source of each condition is also kept in
+     * ACTION_CONDITION_SCRIPTS, as a compiled condition can only call the functions of the control library that is in its own scope.
+     *
+     * @throws ConfigurationException if a declarative condition is not valid, or a condition function has a syntax error.
+     */
+    static String buildActionConditionsScript(final List<Action> actions) throws ConfigurationException {
+        final StringBuilder stringBuilder = new StringBuilder();
+        final Map<String, String> conditionScripts = new LinkedHashMap<>();
+        final List<String> actionConditionScripts = new ArrayList<>(Collections.nCopies(actions.size(), (String) null));
+        for (int index = 0; index < actions.size(); index++) {
+            final Action action = actions.get(index);
+            if (action.getCondition() != null) {
+                final String condition = ConditionCompiler.compile(action.getName(), action.getCondition());
+                actionConditionScripts.set(index, condition);
+                stringBuilder.append(String.format("ACTIONS[%d].condition = %s;\n", index, condition));
+                continue;
+            }
+            final String conditionFunction = action.getConditionFunction();
+            if (Strings.isNullOrEmpty(conditionFunction) || !CONDITION_FUNCTION_PATTERN.matcher(conditionFunction).find()) {
+                continue;
+            }
+            final String conditionScript = "(function () {\n" + conditionFunction + "\nreturn condition;\n})()";
+            conditionScripts.put(action.getName(), conditionScript);
+            actionConditionScripts.set(index, conditionScript);
+            stringBuilder.append(String.format("ACTIONS[%d].condition = ", index)).append(conditionScript).append(";\n");
+        }
+        checkConditionSyntax(conditionScripts);
+        stringBuilder.append(String.format("var ACTION_CONDITION_SCRIPTS = %s;\n", GSON.toJson(actionConditionScripts)));
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Parses each condition function without running it, so that a condition function that is not valid JavaScript is reported
+     * when the workflow is loaded rather than when the first document is routed.
+     */
+    private static void checkConditionSyntax(final Map<String, String> conditionScripts) throws ConfigurationException {
+        if (conditionScripts.isEmpty()) {
+            return;
+        }
+        try (final Context context = Context.create("js")) {
+            for (final Map.Entry<String, String> conditionScript : conditionScripts.entrySet()) {
+                try {
+                    context.parse(Source.create("js", conditionScript.getValue()));
+                } catch (final PolyglotException ex) {
+                    if (!ex.isSyntaxError()) {
+                        throw ex;
+                    }
+                    throw new ConfigurationException(String.format(
+                        "The conditionFunction of action [%s] is not valid. %s", conditionScript.getKey(), ex.getMessage()), ex);
+                }
+            }
+        }
     }
 
     private static void validateWorkflow(final Workflow workflow) throws ConfigurationException {
@@ -161,6 +701,61 @@ public class WorkflowManager {
                 throw new ConfigurationException(String.format("Duplicated action name [%s].", action.getName()));
             }
             actionNames.add(action.getName());
+            if(action.getCondition() != null && !Strings.isNullOrEmpty(action.getConditionFunction())){
+                throw new ConfigurationException(String.format(
+                    "Action [%s] must not define both a condition and a conditionFunction.", action.getName()));
+            }
+        }
+
+        if (workflow.getArguments() != null) {
+            for (final ArgumentDefinition argumentDefinition : workflow.getArguments()) {
+                validateArgumentSources(argumentDefinition);
+            }
+        }
+    }
+
+    /**
+     * Parses the scopes of each settings service source of the argument, so that they are not parsed for every document and so
+     * that invalid scopes are reported when the workflow is loaded.
+     */
+    private static void validateArgumentSources(final ArgumentDefinition argumentDefinition) throws ConfigurationException {
+        if (argumentDefinition.getSources() == null) {
+            return;
+        }
+        for (final ArgumentDefinition.Source source : argumentDefinition.getSources()) {
+            if (source.getType() != ArgumentDefinition.SourceType.SETTINGS_SERVICE) {
+                continue;
+            }
+            try {
+                source.getScopeTemplate();
+            } catch (final IllegalArgumentException ex) {
+                throw new ConfigurationException(String.format(
+                    "Invalid options for settings service source [%s] of argument [%s]. %s",
+                    source.getName(), argumentDefinition.getName(), ex.getMessage()), ex);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface WorkflowLoader
+    {
+        LoadedWorkflow load() throws ConfigurationException;
+    }
+
+    private static final class LoadedWorkflow
+    {
+        private final String name;
+        /**
+         * The workflow, or null if it could not be loaded from the file with the hash below.
+         */
+        private final Workflow workflow;
+        private final String fileHash;
+
+        public LoadedWorkflow(final String name, final Workflow workflow, final String fileHash)
+        {
+            this.name = name;
+            this.workflow = workflow;
+            this.fileHash = fileHash;
         }
     }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2017-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.workflow;
+
+import com.github.cafdataprocessing.workflow.model.Workflow;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.hpe.caf.worker.document.model.Application;
+import com.hpe.caf.worker.document.model.Document;
+import com.hpe.caf.worker.document.model.Task;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import javax.script.ScriptException;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.HostAccess;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+
+/**
+ * Evaluates workflow scripts in the workflow worker without recompiling them for every document.
+ *
+ * The sources of each workflow are built once, and each workflow keeps a small pool of contexts in which its scripts have already
+ * been evaluated. All of the contexts share a single engine, so the parsed and compiled scripts are shared between them. The
+ * number of workflows is bounded, and the contexts of a workflow are closed when it is evicted, or when it is no longer used
+ * because it has been reloaded.
+ */
+public final class WorkflowScriptCache implements Closeable
+{
+    /**
+     * The workflow script is installed on the task by reference before it is evaluated here, so the install() calls made by its
+     * event handlers have nothing to do.
+     */
+    private static final InstalledScript INSTALLED_SCRIPT = new InstalledScript();
+
+    private final Engine engine;
+    private final int contextsPerWorkflow;
+    private final Cache<Workflow, CompiledWorkflow> compiledWorkflows;
+
+    public WorkflowScriptCache()
+    {
+        this(100, 4);
+    }
+
+    /**
+     * @param maxWorkflows The maximum number of workflows whose compiled scripts are kept.
+     * @param contextsPerWorkflow The maximum number of idle contexts that are kept for each workflow.
+     */
+    public WorkflowScriptCache(final int maxWorkflows, final int contextsPerWorkflow)
+    {
+        this.engine = Engine.create();
+        this.contextsPerWorkflow = contextsPerWorkflow;
+        // Workflows are compared by identity, so a reloaded workflow replaces the previous one once that is no longer referenced
+        this.compiledWorkflows = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumSize(maxWorkflows)
+            .removalListener((RemovalListener<Workflow, CompiledWorkflow>) notification -> notification.getValue().close())
+            .build();
+    }
+
+    /**
+     * Raises the events that the workflow script would have received had it been loaded on the document's task.
+     *
+     * onAfterProcessDocument is raised for every document. The task is routed, as onAfterProcessTask would route it, only for the
+     * root document: the workflow worker does not change anything that routing reads when it processes subdocuments, and the
+     * logging data that onAfterProcessTask also clears is managed by the worker itself. If one of these events fails then onError is
+     * raised, as it would have been for a loaded script, so that the failure is recorded on the document and the document is
+     * routed on.
+     *
+     * @param workflow The workflow.
+     * @param document The document being processed.
+     * @throws ScriptException if the workflow script could not be evaluated or its onError event handler failed.
+     */
+    public void processDocument(final Workflow workflow, final Document document) throws ScriptException
+    {
+        final CompiledWorkflow compiledWorkflow = getCompiledWorkflow(workflow);
+        final Context context;
+        try {
+            context = compiledWorkflow.acquireContext();
+        } catch (final PolyglotException ex) {
+            throw new ScriptException(ex);
+        }
+
+        boolean reusable = false;
+        try {
+            final Value bindings = context.getBindings("js");
+            try {
+                invokeFunction(bindings, "onAfterProcessDocument", new EventObject(document));
+                if (document.getParentDocument() == null) {
+                    invokeFunction(bindings, "routeCachedTask", document);
+                }
+                reusable = true;
+            } catch (final PolyglotException ex) {
+                try {
+                    invokeFunction(bindings, "onError", new ErrorEventObject(document, ex));
+                } catch (final PolyglotException onErrorEx) {
+                    onErrorEx.addSuppressed(ex);
+                    throw new ScriptException(onErrorEx);
+                }
+            }
+        } finally {
+            // The global state of a context whose script failed is not known, so it is not used again
+            compiledWorkflow.releaseContext(context, reusable);
+        }
+    }
+
+    private CompiledWorkflow getCompiledWorkflow(final Workflow workflow) throws ScriptException
+    {
+        try {
+            return compiledWorkflows.get(workflow, () -> new CompiledWorkflow(workflow));
+        } catch (final ExecutionException | UncheckedExecutionException ex) {
+            throw new ScriptException(ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex);
+        }
+    }
+
+    private static void invokeFunction(final Value bindings, final String functionName, final Object argument)
+    {
+        final Value function = bindings.getMember(functionName);
+        if (function != null && function.canExecute()) {
+            function.executeVoid(argument);
+        }
+    }
+
+    /**
+     * Closes the contexts of every workflow, and the engine.
+     */
+    @Override
+    public void close()
+    {
+        compiledWorkflows.invalidateAll();
+        compiledWorkflows.cleanUp();
+        engine.close();
+    }
+
+    private final class CompiledWorkflow
+    {
+        private final List<Source> sources;
+        private final BlockingQueue<Context> idleContexts;
+        private volatile boolean closed;
+
+        public CompiledWorkflow(final Workflow workflow)
+        {
+            this.sources = new ArrayList<>(2);
+            if (workflow.getControlLibraryScript() == null) {
+                sources.add(Source.newBuilder("js", workflow.getWorkflowScript(), "workflow.js").buildLiteral());
+            } else {
+                // Evaluating the control library as its own source lets the engine share its compiled code between workflows
+                sources.add(Source.newBuilder("js", workflow.getActionsScript(), "workflow.js").buildLiteral());
+                sources.add(Source.newBuilder("js", workflow.getControlLibraryScript(), "workflow-control.js").buildLiteral());
+            }
+            this.idleContexts = new ArrayBlockingQueue<>(contextsPerWorkflow);
+        }
+
+        public Context acquireContext()
+        {
+            final Context idleContext = idleContexts.poll();
+            return idleContext != null ? idleContext : createContext();
+        }
+
+        public void releaseContext(final Context context, final boolean reusable)
+        {
+            if (!reusable || closed || !idleContexts.offer(context)) {
+                context.close();
+            } else if (closed && idleContexts.remove(context)) {
+                // The workflow was evicted while the context was being returned
+                context.close();
+            }
+        }
+
+        private Context createContext()
+        {
+            final Context context = Context.newBuilder("js")
+                .engine(engine)
+                .allowHostAccess(HostAccess.ALL) // Allow JS access to public Java methods/members
+                .allowHostClassLookup(s -> true) // Allow JS access to public Java classes
+                .build();
+            try {
+                context.getBindings("js").putMember("thisScript", INSTALLED_SCRIPT);
+                for (final Source source : sources) {
+                    context.eval(source);
+                }
+            } catch (final PolyglotException ex) {
+                context.close();
+                throw ex;
+            }
+            return context;
+        }
+
+        public void close()
+        {
+            closed = true;
+            Context idleContext;
+            while ((idleContext = idleContexts.poll()) != null) {
+                idleContext.close();
+            }
+        }
+    }
+
+    public static final class InstalledScript
+    {
+        private InstalledScript()
+        {
+        }
+
+        public void install()
+        {
+        }
+    }
+
+    /**
+     * The subset of the document worker event object members that are used by the workflow script.
+     */
+    public static class EventObject
+    {
+        public final Application application;
+        public final Task task;
+        public final Document rootDocument;
+        public final Document document;
+
+        private EventObject(final Document document)
+        {
+            this.application = document.getApplication();
+            this.task = document.getTask();
+            this.rootDocument = document.getRootDocument();
+            this.document = document;
+        }
+    }
+
+    /**
+     * The subset of the document worker error event object members that are used by the workflow script.
+     */
+    public static final class ErrorEventObject extends EventObject
+    {
+        public final Throwable error;
+        public boolean handled;
+
+        private ErrorEventObject(final Document document, final Throwable error)
+        {
+            super(document);
+            this.error = error;
+        }
+    }
+}
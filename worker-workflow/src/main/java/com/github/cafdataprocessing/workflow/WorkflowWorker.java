@@ -17,6 +17,7 @@ package com.github.cafdataprocessing.workflow;
 
 import com.github.cafdataprocessing.workflow.model.Workflow;
 import com.google.common.base.Strings;
+import com.google.common.io.Closer;
 import com.hpe.caf.api.ConfigurationException;
 import com.hpe.caf.worker.document.exceptions.DocumentWorkerTransientException;
 import com.hpe.caf.worker.document.extensibility.DocumentWorker;
@@ -25,6 +26,7 @@ import com.hpe.caf.worker.document.model.Field;
 import com.hpe.caf.worker.document.model.HealthMonitor;
 import com.hpe.caf.worker.document.model.ResponseCustomData;
 import com.hpe.caf.worker.document.model.Task;
+import java.io.IOException;
 import java.util.Optional;
 import java.util.UUID;
 import org.slf4j.Logger;
@@ -166,6 +168,19 @@ public final class WorkflowWorker implements DocumentWorker
         }
     }
     
+    /**
+     * Releases the resources held by the worker when it is shut down.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        final Closer closer = Closer.create();
+        closer.register(workflowManager);
+        closer.register(scriptManager);
+        closer.register(argumentsManager);
+        closer.close();
+    }
+
     private void addMdcLoggingData(final Task task)
     {
         // The logging pattern we use uses a tenantId and a correlationId:
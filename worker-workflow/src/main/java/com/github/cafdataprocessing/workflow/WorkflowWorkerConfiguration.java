@@ -16,6 +16,7 @@
 package com.github.cafdataprocessing.workflow;
 
 import com.hpe.caf.api.Configuration;
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotNull;
 
 /**
@@ -38,6 +39,163 @@ public final class WorkflowWorkerConfiguration
 
     private String contextScriptFilePath;
 
+    /**
+     * Whether each workflow script should be compiled once and reused to route documents, rather than being loaded onto the task
+     * of every document as a temporary script.
+     */
+    private boolean cacheCompiledWorkflowScripts;
+
+    /**
+     * The maximum number of resolved settings held in memory.
+     */
+    @Min(1)
+    private int settingsCacheMaxEntries = 10000;
+
+    /**
+     * The maximum number of seconds for which a resolved setting is held in memory.
+     */
+    @Min(0)
+    private int settingsCacheExpirationSeconds = 300;
+
+    /**
+     * The number of threads used to look up the settings service arguments of a document concurrently. If 1 then the
+     * settings are looked up one after another.
+     */
+    @Min(1)
+    private int settingsServiceLookupThreads = 8;
+
+    /**
+     * The number of seconds before a resolved setting expires from memory during which reading it starts a background refresh,
+     * so that settings in steady use are refreshed without documents waiting for them. If 0 then settings are not refreshed in
+     * the background.
+     */
+    @Min(0)
+    private int settingsCacheRefreshAheadSeconds = 60;
+
+    /**
+     * The number of seconds for which a setting that was not found in the settings service is remembered, so that it is not
+     * looked up again for every document. If 0 then settings that were not found are not remembered.
+     */
+    @Min(0)
+    private int settingsNotFoundCacheExpirationSeconds = 30;
+
+    /**
+     * The number of consecutive failed settings service requests after which further requests are not sent until the settings
+     * service has had time to recover. If 0 then requests are always sent.
+     */
+    @Min(0)
+    private int settingsServiceCircuitBreakerFailureThreshold = 5;
+
+    /**
+     * The number of seconds for which settings service requests are not sent once the failure threshold has been reached, before a
+     * single request is sent to test whether the settings service has recovered.
+     */
+    @Min(0)
+    private int settingsServiceCircuitBreakerOpenSeconds = 30;
+
+    /**
+     * The maximum age in seconds of the last known value of a setting that may be used when the settings service cannot be
+     * reached. If 0 then last known values are not used.
+     */
+    @Min(0)
+    private int settingsServiceMaxStaleSeconds = 0;
+
+    /**
+     * The connect timeout in seconds for settings service requests. If 0 then there is no timeout.
+     */
+    @Min(0)
+    private int settingsServiceConnectTimeoutSeconds = 10;
+
+    /**
+     * The read timeout in seconds for settings service requests. If 0 then there is no timeout.
+     */
+    @Min(0)
+    private int settingsServiceReadTimeoutSeconds = 10;
+
+    /**
+     * The timeout in seconds for a complete settings service request, including connecting, sending the request and reading
+     * the response. If 0 then there is no timeout.
+     */
+    @Min(0)
+    private int settingsServiceCallTimeoutSeconds = 0;
+
+    /**
+     * The maximum number of idle connections to the settings service that are kept open for reuse.
+     */
+    @Min(1)
+    private int settingsServiceMaxIdleConnections = 5;
+
+    /**
+     * The number of seconds for which an idle connection to the settings service is kept open.
+     */
+    @Min(1)
+    private int settingsServiceKeepAliveSeconds = 300;
+
+    /**
+     * The maximum size in bytes of the settings service HTTP cache.
+     */
+    @Min(1)
+    private long settingsServiceCacheSizeBytes = 10L * 1024 * 1024;
+
+    /**
+     * The directory in which the settings service HTTP cache is kept. If not set then a new temporary directory is used.
+     */
+    private String settingsServiceCacheDirectory;
+
+    /**
+     * The number of seconds between the background checks of the settings service health. The first check starts when the
+     * worker starts, and the settings service is reported as unhealthy until it has completed. Health checks report the result
+     * of the last check rather than contacting the settings service themselves. If 0 then every health check contacts the
+     * settings service.
+     */
+    @Min(0)
+    private int settingsServiceHealthCheckIntervalSeconds = 15;
+
+    /**
+     * If true, the workflows directory is watched and workflows are reloaded when their files are added, changed or deleted.
+     */
+    private boolean reloadWorkflows;
+
+    /**
+     * The number of workflow files that are loaded, validated and stored at the same time when the worker starts. If 1 then the
+     * workflows are loaded one after another. Whether loading in parallel starts the worker sooner depends on the data store, so
+     * it must be enabled by setting this above 1.
+     */
+    @Min(1)
+    private int workflowLoadThreads = 1;
+
+    /**
+     * Whether workflow files are only indexed when the worker starts, and each workflow is loaded the first time that it is
+     * requested rather than every workflow being loaded at startup.
+     */
+    private boolean lazyWorkflowLoading;
+
+    /**
+     * The maximum number of loaded workflows that are kept when workflows are loaded lazily. The least recently used workflows
+     * are discarded, and are loaded again if they are requested again.
+     */
+    @Min(1)
+    private int workflowCacheMaxEntries = 100;
+
+    /**
+     * The location of a workflow bundle written by WorkflowBundleCompiler. If set, the workflows are loaded from the bundle
+     * instead of being parsed from the files in the workflows directory when the worker starts.
+     */
+    private String workflowBundlePath;
+
+    /**
+     * The maximum number of workflows whose compiled scripts are kept when cacheCompiledWorkflowScripts is true. The contexts of
+     * the least recently used workflows are closed.
+     */
+    @Min(1)
+    private int compiledWorkflowScriptCacheMaxEntries = 100;
+
+    /**
+     * The maximum number of idle script contexts that are kept for each workflow when cacheCompiledWorkflowScripts is true.
+     */
+    @Min(1)
+    private int compiledWorkflowScriptContextsPerWorkflow = 4;
+
     public String getContextScriptFilePath()
     {
         return contextScriptFilePath;
@@ -58,6 +216,246 @@ public final class WorkflowWorkerConfiguration
         this.workflowsDirectory = workflowsDirectory;
     }
 
+    public boolean isCacheCompiledWorkflowScripts()
+    {
+        return cacheCompiledWorkflowScripts;
+    }
+
+    public void setCacheCompiledWorkflowScripts(final boolean cacheCompiledWorkflowScripts)
+    {
+        this.cacheCompiledWorkflowScripts = cacheCompiledWorkflowScripts;
+    }
+
+    public int getSettingsCacheMaxEntries()
+    {
+        return settingsCacheMaxEntries;
+    }
+
+    public void setSettingsCacheMaxEntries(final int settingsCacheMaxEntries)
+    {
+        this.settingsCacheMaxEntries = settingsCacheMaxEntries;
+    }
+
+    public int getSettingsCacheExpirationSeconds()
+    {
+        return settingsCacheExpirationSeconds;
+    }
+
+    public void setSettingsCacheExpirationSeconds(final int settingsCacheExpirationSeconds)
+    {
+        this.settingsCacheExpirationSeconds = settingsCacheExpirationSeconds;
+    }
+
+    public int getSettingsServiceLookupThreads()
+    {
+        return settingsServiceLookupThreads;
+    }
+
+    public void setSettingsServiceLookupThreads(final int settingsServiceLookupThreads)
+    {
+        this.settingsServiceLookupThreads = settingsServiceLookupThreads;
+    }
+
+    public int getSettingsCacheRefreshAheadSeconds()
+    {
+        return settingsCacheRefreshAheadSeconds;
+    }
+
+    public void setSettingsCacheRefreshAheadSeconds(final int settingsCacheRefreshAheadSeconds)
+    {
+        this.settingsCacheRefreshAheadSeconds = settingsCacheRefreshAheadSeconds;
+    }
+
+    public int getSettingsNotFoundCacheExpirationSeconds()
+    {
+        return settingsNotFoundCacheExpirationSeconds;
+    }
+
+    public void setSettingsNotFoundCacheExpirationSeconds(final int settingsNotFoundCacheExpirationSeconds)
+    {
+        this.settingsNotFoundCacheExpirationSeconds = settingsNotFoundCacheExpirationSeconds;
+    }
+
+    public int getSettingsServiceCircuitBreakerFailureThreshold()
+    {
+        return settingsServiceCircuitBreakerFailureThreshold;
+    }
+
+    public void setSettingsServiceCircuitBreakerFailureThreshold(final int settingsServiceCircuitBreakerFailureThreshold)
+    {
+        this.settingsServiceCircuitBreakerFailureThreshold = settingsServiceCircuitBreakerFailureThreshold;
+    }
+
+    public int getSettingsServiceCircuitBreakerOpenSeconds()
+    {
+        return settingsServiceCircuitBreakerOpenSeconds;
+    }
+
+    public void setSettingsServiceCircuitBreakerOpenSeconds(final int settingsServiceCircuitBreakerOpenSeconds)
+    {
+        this.settingsServiceCircuitBreakerOpenSeconds = settingsServiceCircuitBreakerOpenSeconds;
+    }
+
+    public int getSettingsServiceMaxStaleSeconds()
+    {
+        return settingsServiceMaxStaleSeconds;
+    }
+
+    public void setSettingsServiceMaxStaleSeconds(final int settingsServiceMaxStaleSeconds)
+    {
+        this.settingsServiceMaxStaleSeconds = settingsServiceMaxStaleSeconds;
+    }
+
+    public int getSettingsServiceConnectTimeoutSeconds()
+    {
+        return settingsServiceConnectTimeoutSeconds;
+    }
+
+    public void setSettingsServiceConnectTimeoutSeconds(final int settingsServiceConnectTimeoutSeconds)
+    {
+        this.settingsServiceConnectTimeoutSeconds = settingsServiceConnectTimeoutSeconds;
+    }
+
+    public int getSettingsServiceReadTimeoutSeconds()
+    {
+        return settingsServiceReadTimeoutSeconds;
+    }
+
+    public void setSettingsServiceReadTimeoutSeconds(final int settingsServiceReadTimeoutSeconds)
+    {
+        this.settingsServiceReadTimeoutSeconds = settingsServiceReadTimeoutSeconds;
+    }
+
+    public int getSettingsServiceCallTimeoutSeconds()
+    {
+        return settingsServiceCallTimeoutSeconds;
+    }
+
+    public void setSettingsServiceCallTimeoutSeconds(final int settingsServiceCallTimeoutSeconds)
+    {
+        this.settingsServiceCallTimeoutSeconds = settingsServiceCallTimeoutSeconds;
+    }
+
+    public int getSettingsServiceMaxIdleConnections()
+    {
+        return settingsServiceMaxIdleConnections;
+    }
+
+    public void setSettingsServiceMaxIdleConnections(final int settingsServiceMaxIdleConnections)
+    {
+        this.settingsServiceMaxIdleConnections = settingsServiceMaxIdleConnections;
+    }
+
+    public int getSettingsServiceKeepAliveSeconds()
+    {
+        return settingsServiceKeepAliveSeconds;
+    }
+
+    public void setSettingsServiceKeepAliveSeconds(final int settingsServiceKeepAliveSeconds)
+    {
+        this.settingsServiceKeepAliveSeconds = settingsServiceKeepAliveSeconds;
+    }
+
+    public long getSettingsServiceCacheSizeBytes()
+    {
+        return settingsServiceCacheSizeBytes;
+    }
+
+    public void setSettingsServiceCacheSizeBytes(final long settingsServiceCacheSizeBytes)
+    {
+        this.settingsServiceCacheSizeBytes = settingsServiceCacheSizeBytes;
+    }
+
+    public String getSettingsServiceCacheDirectory()
+    {
+        return settingsServiceCacheDirectory;
+    }
+
+    public void setSettingsServiceCacheDirectory(final String settingsServiceCacheDirectory)
+    {
+        this.settingsServiceCacheDirectory = settingsServiceCacheDirectory;
+    }
+
+    public int getSettingsServiceHealthCheckIntervalSeconds()
+    {
+        return settingsServiceHealthCheckIntervalSeconds;
+    }
+
+    public void setSettingsServiceHealthCheckIntervalSeconds(final int settingsServiceHealthCheckIntervalSeconds)
+    {
+        this.settingsServiceHealthCheckIntervalSeconds = settingsServiceHealthCheckIntervalSeconds;
+    }
+
+    public boolean isReloadWorkflows()
+    {
+        return reloadWorkflows;
+    }
+
+    public void setReloadWorkflows(final boolean reloadWorkflows)
+    {
+        this.reloadWorkflows = reloadWorkflows;
+    }
+
+    public int getWorkflowLoadThreads()
+    {
+        return workflowLoadThreads;
+    }
+
+    public void setWorkflowLoadThreads(final int workflowLoadThreads)
+    {
+        this.workflowLoadThreads = workflowLoadThreads;
+    }
+
+    public boolean isLazyWorkflowLoading()
+    {
+        return lazyWorkflowLoading;
+    }
+
+    public void setLazyWorkflowLoading(final boolean lazyWorkflowLoading)
+    {
+        this.lazyWorkflowLoading = lazyWorkflowLoading;
+    }
+
+    public int getWorkflowCacheMaxEntries()
+    {
+        return workflowCacheMaxEntries;
+    }
+
+    public void setWorkflowCacheMaxEntries(final int workflowCacheMaxEntries)
+    {
+        this.workflowCacheMaxEntries = workflowCacheMaxEntries;
+    }
+
+    public String getWorkflowBundlePath()
+    {
+        return workflowBundlePath;
+    }
+
+    public void setWorkflowBundlePath(final String workflowBundlePath)
+    {
+        this.workflowBundlePath = workflowBundlePath;
+    }
+
+    public int getCompiledWorkflowScriptCacheMaxEntries()
+    {
+        return compiledWorkflowScriptCacheMaxEntries;
+    }
+
+    public void setCompiledWorkflowScriptCacheMaxEntries(final int compiledWorkflowScriptCacheMaxEntries)
+    {
+        this.compiledWorkflowScriptCacheMaxEntries = compiledWorkflowScriptCacheMaxEntries;
+    }
+
+    public int getCompiledWorkflowScriptContextsPerWorkflow()
+    {
+        return compiledWorkflowScriptContextsPerWorkflow;
+    }
+
+    public void setCompiledWorkflowScriptContextsPerWorkflow(final int compiledWorkflowScriptContextsPerWorkflow)
+    {
+        this.compiledWorkflowScriptContextsPerWorkflow = compiledWorkflowScriptContextsPerWorkflow;
+    }
+
     public String getSettingsServiceUrl() {
         return settingsServiceUrl;
     }
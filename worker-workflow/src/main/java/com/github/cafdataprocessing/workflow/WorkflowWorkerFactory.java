@@ -38,11 +38,13 @@ public final class WorkflowWorkerFactory implements DocumentWorkerFactory
                     .getConfiguration(WorkflowWorkerConfiguration.class);
 
             return new WorkflowWorker(workflowWorkerConfiguration,
-                    new WorkflowManager(application,
-                                        workflowWorkerConfiguration.getWorkflowsDirectory(),
-                                        workflowWorkerConfiguration.getContextScriptFilePath()),
-                    new ScriptManager(),
-                    new ArgumentsManager(workflowWorkerConfiguration.getSettingsServiceUrl()),
+                    new WorkflowManager(application, workflowWorkerConfiguration),
+                    new ScriptManager(workflowWorkerConfiguration.isCacheCompiledWorkflowScripts()
+                                          ? new WorkflowScriptCache(
+                                              workflowWorkerConfiguration.getCompiledWorkflowScriptCacheMaxEntries(),
+                                              workflowWorkerConfiguration.getCompiledWorkflowScriptContextsPerWorkflow())
+                                          : null),
+                    new ArgumentsManager(workflowWorkerConfiguration),
                     new FailureFieldsManager());
 
         } catch(final ConfigurationException ex){
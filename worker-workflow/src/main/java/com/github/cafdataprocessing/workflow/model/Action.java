@@ -22,6 +22,7 @@ public class Action {
     @NotNull
     private String name;
     private String conditionFunction;
+    private Condition condition;
     private Map<String, String> customData;
     private Script[] scripts;
     private boolean terminateOnFailure;
@@ -43,6 +44,14 @@ public class Action {
         this.conditionFunction = conditionFunction;
     }
 
+    public Condition getCondition() {
+        return condition;
+    }
+
+    public void setCondition(final Condition condition) {
+        this.condition = condition;
+    }
+
     public Map<String, String> getCustomData() {
         return customData;
     }
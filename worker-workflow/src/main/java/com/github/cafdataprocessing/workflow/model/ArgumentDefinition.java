@@ -50,6 +50,7 @@ public class ArgumentDefinition {
         private String name;
         private SourceType type;
         private String options;
+        private transient SettingsScopeTemplate scopeTemplate;
 
         public String getName() {
             return name;
@@ -73,6 +74,21 @@ public class ArgumentDefinition {
 
         public void setOptions(final String options) {
             this.options = options;
+            this.scopeTemplate = null;
+        }
+
+        /**
+         * Gets the settings service scopes parsed from the options. The options are parsed the first time that this is called.
+         *
+         * @throws IllegalArgumentException if the options are not valid.
+         */
+        public SettingsScopeTemplate getScopeTemplate() {
+            SettingsScopeTemplate template = scopeTemplate;
+            if (template == null) {
+                template = SettingsScopeTemplate.parse(options);
+                scopeTemplate = template;
+            }
+            return template;
         }
     }
 
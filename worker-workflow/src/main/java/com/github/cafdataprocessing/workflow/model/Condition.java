@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.workflow.model;
+
+import java.util.List;
+
+/**
+ * A declarative action condition. Exactly one of the properties should be set.
+ */
+public class Condition {
+    private List<Condition> all;
+    private List<Condition> any;
+    private Condition not;
+    private String fieldExists;
+    private FieldValue fieldEquals;
+    private FieldValues fieldIn;
+    private ArgumentValue argumentEquals;
+
+    public List<Condition> getAll() {
+        return all;
+    }
+
+    public void setAll(final List<Condition> all) {
+        this.all = all;
+    }
+
+    public List<Condition> getAny() {
+        return any;
+    }
+
+    public void setAny(final List<Condition> any) {
+        this.any = any;
+    }
+
+    public Condition getNot() {
+        return not;
+    }
+
+    public void setNot(final Condition not) {
+        this.not = not;
+    }
+
+    public String getFieldExists() {
+        return fieldExists;
+    }
+
+    public void setFieldExists(final String fieldExists) {
+        this.fieldExists = fieldExists;
+    }
+
+    public FieldValue getFieldEquals() {
+        return fieldEquals;
+    }
+
+    public void setFieldEquals(final FieldValue fieldEquals) {
+        this.fieldEquals = fieldEquals;
+    }
+
+    public FieldValues getFieldIn() {
+        return fieldIn;
+    }
+
+    public void setFieldIn(final FieldValues fieldIn) {
+        this.fieldIn = fieldIn;
+    }
+
+    public ArgumentValue getArgumentEquals() {
+        return argumentEquals;
+    }
+
+    public void setArgumentEquals(final ArgumentValue argumentEquals) {
+        this.argumentEquals = argumentEquals;
+    }
+
+    public static class FieldValue {
+        private String field;
+        private String value;
+
+        public String getField() {
+            return field;
+        }
+
+        public void setField(final String field) {
+            this.field = field;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(final String value) {
+            this.value = value;
+        }
+    }
+
+    public static class FieldValues {
+        private String field;
+        private List<String> values;
+
+        public String getField() {
+            return field;
+        }
+
+        public void setField(final String field) {
+            this.field = field;
+        }
+
+        public List<String> getValues() {
+            return values;
+        }
+
+        public void setValues(final List<String> values) {
+            this.values = values;
+        }
+    }
+
+    public static class ArgumentValue {
+        private String argument;
+        private String value;
+
+        public String getArgument() {
+            return argument;
+        }
+
+        public void setArgument(final String argument) {
+            this.argument = argument;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(final String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.workflow.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The scopes of a settings service source, parsed from the comma separated options of the source.
+ *
+ * Each scope is either a literal, or a value read from a field (%f:name%) or from custom data (%cd:name%) with an optional
+ * literal prefix and suffix.
+ */
+public final class SettingsScopeTemplate {
+    private static final Pattern SCOPE_PATTERN
+        = Pattern.compile("(?<prefix>[a-zA-Z-_.]*)%(?<type>f|cd):(?<name>[a-zA-Z-_.]*)%(?<suffix>[a-zA-Z-_.]*)");
+
+    private final List<Scope> scopes;
+
+    private SettingsScopeTemplate(final List<Scope> scopes) {
+        this.scopes = Collections.unmodifiableList(scopes);
+    }
+
+    /**
+     * Parses the options of a settings service source.
+     *
+     * @param options The options.
+     * @return The parsed scopes.
+     * @throws IllegalArgumentException if a scope contains a % but is not a valid field or custom data scope.
+     */
+    public static SettingsScopeTemplate parse(final String options) {
+        if (options == null) {
+            return new SettingsScopeTemplate(Collections.emptyList());
+        }
+        final String[] scopesToParse = options.split(",");
+        final List<Scope> scopes = new ArrayList<>(scopesToParse.length);
+        for (final String scope : scopesToParse) {
+            final Matcher matcher = SCOPE_PATTERN.matcher(scope);
+            if (matcher.matches()) {
+                scopes.add(new Scope(
+                    matcher.group("type").equals("f") ? ScopeType.FIELD : ScopeType.CUSTOM_DATA,
+                    matcher.group("name"),
+                    matcher.group("prefix"),
+                    matcher.group("suffix")));
+            } else if (scope.indexOf('%') != -1) {
+                throw new IllegalArgumentException(String.format(
+                    "Invalid scope [%s]. A scope must either be a literal or contain a single %%f:name%% or %%cd:name%% "
+                    + "placeholder.", scope));
+            } else {
+                scopes.add(new Scope(ScopeType.LITERAL, null, scope, ""));
+            }
+        }
+        return new SettingsScopeTemplate(scopes);
+    }
+
+    public List<Scope> getScopes() {
+        return scopes;
+    }
+
+    public enum ScopeType {
+        LITERAL, FIELD, CUSTOM_DATA
+    }
+
+    public static final class Scope {
+        private final ScopeType type;
+        private final String name;
+        private final String prefix;
+        private final String suffix;
+
+        private Scope(final ScopeType type, final String name, final String prefix, final String suffix) {
+            this.type = type;
+            this.name = name;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        public ScopeType getType() {
+            return type;
+        }
+
+        /**
+         * Gets the name of the field or custom data that the scope value is read from, or null for a literal scope.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Builds the scope from the value read from the document. A literal scope is returned as it is when the value is empty.
+         */
+        public String format(final String value) {
+            return prefix + value + suffix;
+        }
+    }
+}
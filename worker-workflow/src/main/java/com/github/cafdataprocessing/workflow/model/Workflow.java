@@ -21,7 +21,10 @@ public class Workflow {
     private List<ArgumentDefinition> arguments;
     private List<Action> actions;
     private String workflowScript;
+    private String actionsScript;
+    private String controlLibraryScript;
     private String storageReference;
+    private String controlLibraryStorageReference;
 
     public String getStorageReferenceForWorkflowScript() {
         return storageReference;
@@ -31,6 +34,14 @@ public class Workflow {
         this.storageReference = storageReference;
     }
 
+    public String getStorageReferenceForControlLibrary() {
+        return controlLibraryStorageReference;
+    }
+
+    public void setControlLibraryStorageReference(final String controlLibraryStorageReference) {
+        this.controlLibraryStorageReference = controlLibraryStorageReference;
+    }
+
     public List<Action> getActions() {
         return actions;
     }
@@ -47,6 +58,22 @@ public class Workflow {
         this.workflowScript = workflowScript;
     }
 
+    public String getActionsScript() {
+        return actionsScript;
+    }
+
+    public void setActionsScript(final String actionsScript) {
+        this.actionsScript = actionsScript;
+    }
+
+    public String getControlLibraryScript() {
+        return controlLibraryScript;
+    }
+
+    public void setControlLibraryScript(final String controlLibraryScript) {
+        this.controlLibraryScript = controlLibraryScript;
+    }
+
     public List<ArgumentDefinition> getArguments() {
         return arguments;
     }
@@ -21,7 +21,10 @@ function addFailures (document, failures, extractSourceCallback, action) {
         var failureSubfieldsField = rootDocument.getField("CAF_WORKFLOW_EXTRA_FAILURE_SUBFIELDS");
         var failureSubfieldsJson = failureSubfieldsField.getStringValues().stream().findFirst()
             .orElse("{}");
-        return JSON.parse(failureSubfieldsJson);
+        // Use the workflow control script's parsed value when it is available
+        return typeof parseFieldJson === 'function'
+            ? parseFieldJson("CAF_WORKFLOW_EXTRA_FAILURE_SUBFIELDS", failureSubfieldsJson)
+            : JSON.parse(failureSubfieldsJson);
     }
 
     function getWorkflowAction(document) {
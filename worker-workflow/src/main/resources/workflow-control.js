@@ -22,10 +22,21 @@ var MDC = Java.type("org.slf4j.MDC");
 var UUID = Java.type("java.util.UUID");
 var ScriptEngineType = Java.type("com.hpe.caf.worker.document.model.ScriptEngineType");
 var System = Java.type("java.lang.System");
-
-if(!ACTIONS){
-    throw new UnsupportedOperationException ("Workflow script must define an ACTIONS object.");
-}
+var WorkflowFunctions = getWorkflowFunctions();
+
+// ACTIONS is defined by the workflow's actions script. When this library is loaded as a separate script it is taken from the script
+// object of the actions script installed on the task, see ensureActions.
+var ACTIONS;
+// ACTION_INDEX maps each action name to its position in ACTIONS. It is generated alongside ACTIONS, see getActionIndex.
+var ACTION_INDEX;
+// The condition sources of actions taken from a separately loaded actions script, and the conditions compiled from them, see
+// getActionCondition.
+var separateActionConditionScripts = null;
+var separateActionConditions = {};
+// The last value parsed from each field, so that a field is only parsed again when its value changes.
+var parsedFieldJson = {};
+// addFailures compiled from thisScriptObject, see getAddFailures.
+var compiledAddFailures = null;
 
 function onProcessTask(e) {
     addMdcLoggingData(e);
@@ -75,31 +86,42 @@ function isBulkWorker(e) {
 }
 
 function onAfterProcessTask(eventObj) {
+    ensureActions(eventObj.rootDocument);
     routeTask(eventObj.rootDocument);
     removeMdcLoggingData();
 }
 
+// Routes the task when the workflow worker evaluates this script itself rather than loading it onto the task, see
+// WorkflowScriptCache. The worker manages its own logging data, so unlike onAfterProcessTask this does not remove it.
+function routeCachedTask(rootDocument) {
+    ensureActions(rootDocument);
+    routeTask(rootDocument);
+}
+
 function removeMdcLoggingData() {
     MDC.remove("tenantId");
     MDC.remove("correlationId");
 }
 
 function onBeforeProcessDocument(e) {
+    ensureActions(e.rootDocument);
     //Get the action from ACTIONS, use the value of CAF_WORKFLOW_ACTION to know the name of the action
     if(!e.rootDocument.getField("CAF_WORKFLOW_ACTION").hasValues())
         throw new UnsupportedOperationException("Document must contain field CAF_WORKFLOW_ACTION.");
-    var index = ACTIONS.map(function (x) {
-                return x.name;
-            }).indexOf(e.rootDocument.getField("CAF_WORKFLOW_ACTION").getStringValues().get(0));
+    var index = getActionIndex(e.rootDocument.getField("CAF_WORKFLOW_ACTION").getStringValues().get(0));
 
     var action = ACTIONS[index];
-    if (!action.conditionFunction) {
+    if (!hasCondition(action)) {
         return;
     }
 
+    var actionCondition = getActionCondition(action);
+    if (actionCondition === null) {
+        throw new UnsupportedOperationException("The conditionFunction of action [" + action.name
+            + "] must define a function called condition.");
+    }
     var args = extractArguments(e.rootDocument);
-    eval(action.conditionFunction);
-    e.cancel = ! condition(e.document, args);
+    e.cancel = !actionCondition(e.document, args);
 }
 
 function onProcessDocument(e) {
@@ -124,6 +146,7 @@ function setWorkerVersion(document) {
 
 function onError(errorEventObj) {
     thisScript.install();
+    ensureActions(errorEventObj.rootDocument);
     var rootDoc = errorEventObj.rootDocument;
     var message = errorEventObj.error.getMessage();
     rootDoc.getFailures().add("UNHANDLED_ERROR", message, errorEventObj.error);
@@ -135,17 +158,44 @@ function onError(errorEventObj) {
     routeTask(errorEventObj.rootDocument);
 }
 
+function ensureActions(document) {
+    if (ACTIONS) {
+        return;
+    }
+    var scripts = document.getTask().getScripts();
+    for (var index = 0; index < scripts.size(); index++) {
+        var script = scripts.get(index);
+        if (script.getName() === "workflow.js") {
+            // A loaded actions script exposes its actions as its script object, so they are not evaluated again here
+            var actionsScript = script.isLoaded() ? script.getObject() : null;
+            if (!actionsScript || !actionsScript.actions) {
+                // Evaluated in a function so that the actions script's own event handlers do not replace the ones defined here
+                actionsScript = (0, eval)("(function () {\n" + script.getScript()
+                    + "\nreturn {actions: ACTIONS, actionIndex: typeof ACTION_INDEX === 'undefined' ? undefined : ACTION_INDEX};\n})()");
+            }
+            ACTIONS = actionsScript.actions;
+            ACTION_INDEX = actionsScript.actionIndex;
+            separateActionConditionScripts = actionsScript.conditionScripts || null;
+            break;
+        }
+    }
+    if (!ACTIONS) {
+        throw new UnsupportedOperationException("Workflow script must define an ACTIONS object.");
+    }
+}
+
 function routeTask(rootDocument) {
 
     var args = extractArguments(rootDocument);
 
     var previousAction = markPreviousActionAsCompleted(rootDocument);
     var terminateOnFailure = getTerminateOnFailure(previousAction);	
+    var completedActions = getCompletedActions(rootDocument);
 
     for (var index = 0; index < ACTIONS.length; index ++ ) {
         var action = ACTIONS[index];
-        if (!isActionCompleted(rootDocument, action.name)) {
-            if(!action.conditionFunction || anyDocumentMatches(action.conditionFunction, rootDocument, args)) {
+        if (!completedActions.has(action.name)) {
+            if(!hasCondition(action) || anyDocumentMatches(getActionCondition(action), rootDocument, args)) {
                 var actionDetails = {
                     queueName: action.queueName,
                     scripts: action.scripts,
@@ -191,9 +241,7 @@ function routeTask(rootDocument) {
 function getTerminateOnFailure(previousAction)
 {
     if (previousAction) {
-        var previousIndex = ACTIONS.map(function (a) {
-            return a.name;
-        }).indexOf(previousAction);
+        var previousIndex = getActionIndex(previousAction);
         return	ACTIONS[previousIndex].terminateOnFailure;
     }
     return false;
@@ -212,7 +260,7 @@ function extractArguments(document){
         throw new UnsupportedOperationException("Document must contain field CAF_WORKFLOW_SETTINGS.");
     }
 
-    return JSON.parse(argumentsJson);
+    return parseFieldJson("CAF_WORKFLOW_SETTINGS", argumentsJson);
 }
 
 function extractFailureSubfields(document) {
@@ -221,23 +269,76 @@ function extractFailureSubfields(document) {
     var failureSubfieldsField = rootDocument.getField("CAF_WORKFLOW_EXTRA_FAILURE_SUBFIELDS");
     var failureSubfieldsJson = failureSubfieldsField.getStringValues().stream().findFirst()
             .orElse("{}");
-    return JSON.parse(failureSubfieldsJson);
+    return parseFieldJson("CAF_WORKFLOW_EXTRA_FAILURE_SUBFIELDS", failureSubfieldsJson);
+}
+
+function parseFieldJson(fieldName, json) {
+    // The parsed value is shared by every document with the same field value, so it is frozen to stop changes made while
+    // processing one document being seen by the next
+    var parsed = parsedFieldJson[fieldName];
+    if (parsed === undefined || parsed.json !== json) {
+        parsed = {json: json, value: deepFreeze(JSON.parse(json))};
+        parsedFieldJson[fieldName] = parsed;
+    }
+    return parsed.value;
+}
+
+function deepFreeze(value) {
+    if (value !== null && typeof value === "object" && !Object.isFrozen(value)) {
+        Object.freeze(value);
+        for (var key of Object.keys(value)) {
+            deepFreeze(value[key]);
+        }
+    }
+    return value;
 }
 
-function anyDocumentMatches(conditionFunction, document, args){
+function hasCondition(action) {
+    // Declarative conditions are only present as the compiled ACTIONS[i].condition
+    return !!(action.condition || action.conditionFunction);
+}
+
+function getActionCondition(action) {
+    // The workflow worker precompiles each action's condition into ACTIONS[i].condition when it builds the script.
+    // The conditions of a separately loaded actions script can only call the functions in that script's scope, so they are compiled
+    // again here, once per action, from the sources the actions script keeps alongside them.
+    if (separateActionConditionScripts) {
+        if (!Object.prototype.hasOwnProperty.call(separateActionConditions, action.name)) {
+            var conditionScript = separateActionConditionScripts[getActionIndex(action.name)];
+            separateActionConditions[action.name] = conditionScript ? (0, eval)(conditionScript) : null;
+        }
+        return separateActionConditions[action.name];
+    }
+    // Actions that were not precompiled are compiled on first use and the result is cached on the action.
+    if (action.condition === undefined) {
+        action.condition = compileCondition(action.conditionFunction);
+    }
+    return action.condition;
+}
+
+function compileCondition(conditionFunction) {
 
     //Test the condition string defines a function called 'condition'
     if(! conditionFunction.match(/function\s+condition\s*\(/)) {
-        return false; //Should this be an exception?
+        // routeTask skips the action, and onBeforeProcessDocument fails
+        return null;
+    }
+    // Indirect eval so that the condition is compiled in the global scope
+    return (0, eval)("(function () {\n" + conditionFunction + "\nreturn condition;\n})()");
+}
+
+function anyDocumentMatches(condition, document, args){
+
+    if (condition === null) {
+        return false;
     }
-    eval(conditionFunction);
     if (condition(document, args)) {
         return true;
     }
 
     return document.getSubdocuments().stream().anyMatch(
         function (d) {
-            return anyDocumentMatches(conditionFunction, d, args);
+            return anyDocumentMatches(condition, d, args);
         });
 }
 
@@ -273,8 +374,24 @@ function markPreviousActionAsCompleted(document) {
     return previousActionId;
 }
 
-function isActionCompleted(document, actionId) {
-    return document.getField('CAF_WORKFLOW_ACTIONS_COMPLETED').getStringValues().contains(actionId);
+function getCompletedActions(document) {
+    var completedActions = new Set();
+    var completedActionValues = document.getField('CAF_WORKFLOW_ACTIONS_COMPLETED').getStringValues();
+    for (var index = 0; index < completedActionValues.size(); index++) {
+        completedActions.add(completedActionValues.get(index));
+    }
+    return completedActions;
+}
+
+function getActionIndex(actionName) {
+    // The workflow worker generates ACTION_INDEX when it builds the script, but build it here if the script did not define it.
+    if (!ACTION_INDEX) {
+        ACTION_INDEX = {};
+        for (var index = 0; index < ACTIONS.length; index++) {
+            ACTION_INDEX[ACTIONS[index].name] = index;
+        }
+    }
+    return Object.prototype.hasOwnProperty.call(ACTION_INDEX, actionName) ? ACTION_INDEX[actionName] : -1;
 }
 
 function applyActionDetails(document, actionDetails, terminateOnFailure) {
@@ -323,6 +440,7 @@ function isCafWmpEnabled() {
 }
 
 function onAfterProcessDocument(e) {
+    ensureActions(e.rootDocument);
     if (fieldExists(e.rootDocument, "CAF_WORKFLOW_ACTION") &&
             !getTerminateOnFailure(e.rootDocument.getField("CAF_WORKFLOW_ACTION").getStringValues().get(0)) &&
             !isLastAction(e.rootDocument.getField("CAF_WORKFLOW_ACTION").getStringValues().get(0))) {
@@ -344,33 +462,47 @@ function traverseDocumentForFailures(document) {
 function processFailures(document) {
     if (document.getFailures().isChanged()) {
 
-        var listOfFailures = new ArrayList();
+        var listOfFailures = [];
         document.getFailures().stream().forEach(function (failure) {
-            listOfFailures.add(failure);
+            listOfFailures.push(failure);
         });
 
         document.getFailures().reset();
 
-        var listOfOriginalFailures = new ArrayList();
+        var originalFailureKeys = new Set();
         document.getFailures().stream().forEach(function (failure) {
-            listOfOriginalFailures.add(failure);
+            originalFailureKeys.add(getFailureKey(failure));
         });
         var newFailures = new ArrayList();
-        listOfFailures.stream().forEach(function(failure) {
-           if(!isFailureInOriginal(listOfOriginalFailures, failure)){
+        listOfFailures.forEach(function(failure) {
+           if(!originalFailureKeys.has(getFailureKey(failure))){
                newFailures.add(failure);
            }
         });
-        eval(thisScriptObject);
-        addFailures(document, newFailures);
+        getAddFailures()(document, newFailures);
     }
 }
 
+function getFailureKey(failure) {
+    return JSON.stringify([failure.getFailureId(), failure.getFailureMessage(), failure.getFailureStack()]);
+}
+
+function getAddFailures() {
+    // thisScriptObject is only evaluated again if it has been replaced
+    if (compiledAddFailures === null || compiledAddFailures.source !== thisScriptObject) {
+        compiledAddFailures = {
+            source: thisScriptObject,
+            addFailures: (0, eval)("(function () {\n" + thisScriptObject + "\nreturn addFailures;\n})()")
+        };
+    }
+    return compiledAddFailures.addFailures;
+}
+
 function isFailureInOriginal(listOfOriginalFailures, newFailure) {
+    // Failures are matched on the same key as in processFailures
+    var newFailureKey = getFailureKey(newFailure);
     for (var failure of listOfOriginalFailures) {
-        if (newFailure.getFailureId() === failure.getFailureId()
-                && newFailure.getFailureMessage() === failure.getFailureMessage()
-                && newFailure.getFailureStack() === failure.getFailureStack()) {
+        if (getFailureKey(failure) === newFailureKey) {
             return true;
         }
     }
@@ -396,11 +528,23 @@ function getCurrentWorkerVersion(document) {
 
 //Field Conditions
 
+function getWorkflowFunctions() {
+    // The Java implementations of the field conditions are only available in the workflow worker itself
+    try {
+        return Java.type("com.github.cafdataprocessing.workflow.WorkflowFunctions");
+    } catch (e) {
+        return null;
+    }
+}
+
 function fieldExists(document, fieldName) {
     return document.getField(fieldName).hasValues();
 }
 
 function isEmptyMap(mapValue) {
+    if (WorkflowFunctions !== null && typeof mapValue === 'string') {
+        return WorkflowFunctions.isEmptyMap(mapValue);
+    }
     if(!mapValue)
         return true;
     var jsonString= mapValue.replace(/\s/g, '');    
@@ -415,6 +559,9 @@ function isFieldValueEqualToValue(fieldValue, value) {
 }
 
 function fieldHasStringValue(document, fieldName, value) {
+    if (WorkflowFunctions !== null && typeof value === 'string') {
+        return WorkflowFunctions.fieldHasStringValue(document, fieldName, value);
+    }
     var fieldValues = document.getField(fieldName).getValues();
     for(const fieldValue of fieldValues) {
         return isFieldValueEqualToValue(fieldValue, value);
@@ -422,6 +569,9 @@ function fieldHasStringValue(document, fieldName, value) {
 }
 
 function fieldHasAnyStringValue(document, fieldName, values) {
+    if (WorkflowFunctions !== null && (Array.isArray(values) || Java.isJavaObject(values))) {
+        return WorkflowFunctions.fieldHasAnyStringValue(document, fieldName, values);
+    }
     var fieldValues = document.getField(fieldName).getValues();
 
     for(const fieldValue of fieldValues) {
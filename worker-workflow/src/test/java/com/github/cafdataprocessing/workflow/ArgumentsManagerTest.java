@@ -17,23 +17,47 @@ package com.github.cafdataprocessing.workflow;
 
 import com.github.cafdataprocessing.workflow.model.ArgumentDefinition;
 import com.github.cafdataprocessing.workflow.restclients.settings_service.api.SettingsApi;
+import com.github.cafdataprocessing.workflow.restclients.settings_service.client.ApiException;
 import com.github.cafdataprocessing.workflow.restclients.settings_service.model.ResolvedSetting;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.hpe.caf.worker.document.exceptions.DocumentWorkerTransientException;
 import com.hpe.caf.worker.document.model.Document;
 import com.hpe.caf.worker.document.testing.DocumentBuilder;
 import com.hpe.caf.worker.document.testing.TestServices;
 
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +65,37 @@ import org.slf4j.LoggerFactory;
 public class ArgumentsManagerTest {
     private static final Logger LOG = LoggerFactory.getLogger(ArgumentsManagerTest.class);
 
+    private final List<ArgumentsManager> argumentsManagers = new ArrayList<>();
+
+    @AfterEach
+    public void closeArgumentsManagers() throws IOException {
+        for (final ArgumentsManager argumentsManager : argumentsManagers) {
+            argumentsManager.close();
+        }
+    }
+
+    private ArgumentsManager createArgumentsManager(
+        final SettingsApi settingsApi,
+        final SettingsApi forceCacheRefreshSettingsApi,
+        final String settingsServiceUrl
+    ) {
+        final ArgumentsManager argumentsManager
+            = new ArgumentsManager(settingsApi, forceCacheRefreshSettingsApi, settingsServiceUrl);
+        argumentsManagers.add(argumentsManager);
+        return argumentsManager;
+    }
+
+    private ArgumentsManager createArgumentsManager(
+        final SettingsApi settingsApi,
+        final SettingsApi forceCacheRefreshSettingsApi,
+        final WorkflowWorkerConfiguration configuration
+    ) {
+        final ArgumentsManager argumentsManager
+            = new ArgumentsManager(settingsApi, forceCacheRefreshSettingsApi, configuration);
+        argumentsManagers.add(argumentsManager);
+        return argumentsManager;
+    }
+
     @Test
     public void argumentFromFieldTest() throws Exception {
 
@@ -57,7 +112,7 @@ public class ArgumentsManagerTest {
                 .documentBuilder()
                 .build();
 
-        final ArgumentsManager argumentsManager = new ArgumentsManager(settingsApi, settingsApi, "");
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
         argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
 
         final Gson gson = new Gson();
@@ -85,7 +140,7 @@ public class ArgumentsManagerTest {
                 .documentBuilder()
                 .build();
 
-        final ArgumentsManager argumentsManager = new ArgumentsManager(settingsApi, settingsApi, "");
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
         argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
 
         final Gson gson = new Gson();
@@ -112,7 +167,7 @@ public class ArgumentsManagerTest {
                 .documentBuilder()
                 .build();
 
-        final ArgumentsManager argumentsManager = new ArgumentsManager(settingsApi, settingsApi, "");
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
         argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
 
         final Gson gson = new Gson();
@@ -145,7 +200,7 @@ public class ArgumentsManagerTest {
                 .documentBuilder()
                 .build();
 
-        final ArgumentsManager argumentsManager = new ArgumentsManager(settingsApi, settingsApi, "");
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
         argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
 
         final Gson gson = new Gson();
@@ -178,7 +233,7 @@ public class ArgumentsManagerTest {
                 .documentBuilder()
                 .build();
 
-        final ArgumentsManager argumentsManager = new ArgumentsManager(settingsApi, settingsApi, "");
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
         argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
 
         final Gson gson = new Gson();
@@ -211,7 +266,7 @@ public class ArgumentsManagerTest {
                 .addFieldValue("repositoryId", "rId2")
                 .documentBuilder()
                 .build();
-        final ArgumentsManager argumentsManager = new ArgumentsManager(settingsApi, settingsApi, "");
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
         argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
 
         final Gson gson = new Gson();
@@ -245,7 +300,7 @@ public class ArgumentsManagerTest {
                 .addFieldValue("wkbkId", "wId2")
                 .documentBuilder()
                 .build();
-        final ArgumentsManager argumentsManager = new ArgumentsManager(settingsApi, settingsApi, "");
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
         argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
 
         final Gson gson = new Gson();
@@ -281,7 +336,7 @@ public class ArgumentsManagerTest {
                 .addFieldValue("caseId", "cId")
                 .documentBuilder()
                 .build();
-        final ArgumentsManager argumentsManager = new ArgumentsManager(settingsApi, settingsApi, "");
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
         argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
 
         final Gson gson = new Gson();
@@ -318,7 +373,7 @@ public class ArgumentsManagerTest {
                 .addFieldValue("caseId", "cId")
                 .documentBuilder()
                 .build();
-        final ArgumentsManager argumentsManager = new ArgumentsManager(settingsApi, settingsApi, "");
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
         argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
 
         final Gson gson = new Gson();
@@ -355,7 +410,7 @@ public class ArgumentsManagerTest {
                 .addFieldValue("caseId", "cId")
                 .documentBuilder()
                 .build();
-        final ArgumentsManager argumentsManager = new ArgumentsManager(settingsApi, settingsApi, "");
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
         argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
 
         final Gson gson = new Gson();
@@ -404,7 +459,7 @@ public class ArgumentsManagerTest {
                 .documentBuilder()
                 .build();
 
-        final ArgumentsManager argumentsManager = new ArgumentsManager(settingsApi, settingsApi, "");
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
         argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
   
         final Type type = new TypeToken<Map<String, String>>() {}.getType();
@@ -414,6 +469,464 @@ public class ArgumentsManagerTest {
         assertEquals("valueFromCafWorkflowSettings", cafWorkflowSettings.get("example"));
     }
 
+    @Test
+    public void resolvedSettingCachedInMemoryTest() throws Exception {
+
+        final List<ArgumentDefinition> argumentDefinitions = getArgumentDefinitions();
+
+        final SettingsApi settingsApi = mock(SettingsApi.class);
+
+        final ResolvedSetting resolvedSetting = new ResolvedSetting();
+        resolvedSetting.setValue("valueFromSettingsService");
+        when(settingsApi.getResolvedSetting("exampleSetting", "repository-rId,tenantId-tId-some-suffix", "1,2"))
+                .thenReturn(resolvedSetting);
+
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
+
+        for (int index = 0; index < 2; index++) {
+            final Document document = DocumentBuilder.configure().withServices(TestServices.createDefault())
+                    .withCustomData()
+                    .add("workflowName", "sample-workflow")
+                    .add("repositoryId", "rId")
+                    .add("tenantId", "tId")
+                    .documentBuilder()
+                    .withFields()
+                    .documentBuilder()
+                    .build();
+
+            argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
+
+            final Gson gson = new Gson();
+            final Type type = new TypeToken<Map<String, String>>() {}.getType();
+            final Map<String, String> arguments = gson.fromJson(
+                    document.getField("CAF_WORKFLOW_SETTINGS").getStringValues().stream().findFirst().get(), type);
+
+            assertEquals("valueFromSettingsService", arguments.get("example"));
+        }
+
+        verify(settingsApi, times(1))
+                .getResolvedSetting("exampleSetting", "repository-rId,tenantId-tId-some-suffix", "1,2");
+        assertEquals(1, argumentsManager.getSettingsCacheHitCount());
+        assertEquals(1, argumentsManager.getSettingsCacheMissCount());
+    }
+
+    @Test
+    public void concurrentSettingLookupsCoalescedTest() throws Exception {
+
+        final List<ArgumentDefinition> argumentDefinitions = getArgumentDefinitions();
+
+        final SettingsApi settingsApi = mock(SettingsApi.class);
+
+        final ResolvedSetting resolvedSetting = new ResolvedSetting();
+        resolvedSetting.setValue("valueFromSettingsService");
+        final CountDownLatch releaseLookup = new CountDownLatch(1);
+        when(settingsApi.getResolvedSetting("exampleSetting", "repository-rId,tenantId-tId-some-suffix", "1,2"))
+                .thenAnswer(invocation -> {
+                    releaseLookup.await(10, TimeUnit.SECONDS);
+                    return resolvedSetting;
+                });
+
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final List<Future<Document>> documents = new ArrayList<>();
+            for (int index = 0; index < 2; index++) {
+                documents.add(executor.submit(() -> {
+                    final Document document = DocumentBuilder.configure().withServices(TestServices.createDefault())
+                            .withCustomData()
+                            .add("workflowName", "sample-workflow")
+                            .add("repositoryId", "rId")
+                            .add("tenantId", "tId")
+                            .documentBuilder()
+                            .withFields()
+                            .documentBuilder()
+                            .build();
+                    argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
+                    return document;
+                }));
+            }
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (argumentsManager.getSettingsCoalescedLookupCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            releaseLookup.countDown();
+
+            final Gson gson = new Gson();
+            final Type type = new TypeToken<Map<String, String>>() {}.getType();
+            for (final Future<Document> document : documents) {
+                final Map<String, String> arguments = gson.fromJson(
+                        document.get(10, TimeUnit.SECONDS).getField("CAF_WORKFLOW_SETTINGS").getStringValues().stream()
+                                .findFirst().get(), type);
+                assertEquals("valueFromSettingsService", arguments.get("example"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify(settingsApi, times(1))
+                .getResolvedSetting("exampleSetting", "repository-rId,tenantId-tId-some-suffix", "1,2");
+        assertEquals(1, argumentsManager.getSettingsCoalescedLookupCount());
+    }
+
+    @Test
+    public void settingRefreshedInBackgroundBeforeExpiryTest() throws Exception {
+
+        final List<ArgumentDefinition> argumentDefinitions = getArgumentDefinitions();
+
+        final SettingsApi settingsApi = mock(SettingsApi.class);
+
+        final ResolvedSetting resolvedSetting = new ResolvedSetting();
+        resolvedSetting.setValue("valueFromSettingsService");
+        final ResolvedSetting refreshedSetting = new ResolvedSetting();
+        refreshedSetting.setValue("refreshedValueFromSettingsService");
+        when(settingsApi.getResolvedSetting("exampleSetting", "repository-rId,tenantId-tId-some-suffix", "1,2"))
+                .thenReturn(resolvedSetting, refreshedSetting);
+
+        final WorkflowWorkerConfiguration configuration = new WorkflowWorkerConfiguration();
+        configuration.setSettingsServiceUrl("");
+        configuration.setSettingsCacheExpirationSeconds(2);
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, configuration);
+
+        assertEquals("valueFromSettingsService", getExampleArgument(argumentsManager, argumentDefinitions));
+
+        // The refresh is due half way through the time that the setting is held for
+        Thread.sleep(1200);
+        assertEquals("valueFromSettingsService", getExampleArgument(argumentsManager, argumentDefinitions));
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        String value;
+        do {
+            value = getExampleArgument(argumentsManager, argumentDefinitions);
+        } while (!"refreshedValueFromSettingsService".equals(value) && System.nanoTime() < deadline);
+
+        assertEquals("refreshedValueFromSettingsService", value);
+        assertEquals(1, argumentsManager.getSettingsBackgroundRefreshCount());
+        assertEquals(1, argumentsManager.getSettingsCacheMissCount());
+    }
+
+    private static String getExampleArgument(
+        final ArgumentsManager argumentsManager,
+        final List<ArgumentDefinition> argumentDefinitions
+    ) throws Exception {
+        return getExampleArgument(argumentsManager, argumentDefinitions, Optional.empty());
+    }
+
+    private static String getExampleArgument(
+        final ArgumentsManager argumentsManager,
+        final List<ArgumentDefinition> argumentDefinitions,
+        final Optional<Long> settingsServiceLastUpdateTime
+    ) throws Exception {
+        final Document document = DocumentBuilder.configure().withServices(TestServices.createDefault())
+                .withCustomData()
+                .add("workflowName", "sample-workflow")
+                .add("repositoryId", "rId")
+                .add("tenantId", "tId")
+                .documentBuilder()
+                .withFields()
+                .documentBuilder()
+                .build();
+
+        argumentsManager.addArgumentsToDocument(argumentDefinitions, document, settingsServiceLastUpdateTime);
+
+        final Gson gson = new Gson();
+        final Type type = new TypeToken<Map<String, String>>() {}.getType();
+        final Map<String, String> arguments = gson.fromJson(
+                document.getField("CAF_WORKFLOW_SETTINGS").getStringValues().stream().findFirst().get(), type);
+        return arguments.get("example");
+    }
+
+    @Test
+    public void settingNotFoundCachedTest() throws Exception {
+
+        final List<ArgumentDefinition> argumentDefinitions = new ArrayList<>();
+        final ArgumentDefinition argumentDefinition = createArgumentDefinition("optional",
+            createSource("optionalSetting", ArgumentDefinition.SourceType.SETTINGS_SERVICE, "tenantId-%cd:tenantId%"));
+        argumentDefinition.setDefaultValue("defaultValue");
+        argumentDefinitions.add(argumentDefinition);
+
+        final SettingsApi settingsApi = mock(SettingsApi.class);
+        when(settingsApi.getResolvedSetting("optionalSetting", "tenantId-tId", "1"))
+                .thenThrow(new ApiException(404, "Not Found"));
+
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
+
+        final Gson gson = new Gson();
+        final Type type = new TypeToken<Map<String, String>>() {}.getType();
+        final List<Optional<Long>> settingsServiceLastUpdateTimes = Arrays.asList(
+            Optional.empty(),
+            Optional.empty(),
+            Optional.of(Instant.now().toEpochMilli() + TimeUnit.MINUTES.toMillis(1)));
+        for (final Optional<Long> settingsServiceLastUpdateTime : settingsServiceLastUpdateTimes) {
+            final Document document = DocumentBuilder.configure().withServices(TestServices.createDefault())
+                    .withCustomData()
+                    .add("workflowName", "sample-workflow")
+                    .add("tenantId", "tId")
+                    .documentBuilder()
+                    .withFields()
+                    .documentBuilder()
+                    .build();
+
+            argumentsManager.addArgumentsToDocument(argumentDefinitions, document, settingsServiceLastUpdateTime);
+
+            final Map<String, String> arguments = gson.fromJson(
+                    document.getField("CAF_WORKFLOW_SETTINGS").getStringValues().stream().findFirst().get(), type);
+            assertEquals("defaultValue", arguments.get("optional"));
+        }
+
+        // The second document uses the cached result, and the settings update before the third document forces a new lookup
+        verify(settingsApi, times(2)).getResolvedSetting("optionalSetting", "tenantId-tId", "1");
+        assertEquals(1, argumentsManager.getSettingsCacheHitCount());
+    }
+
+    @Test
+    public void lastKnownSettingServedWhileCircuitOpenTest() throws Exception {
+
+        final List<ArgumentDefinition> argumentDefinitions = getArgumentDefinitions();
+
+        final SettingsApi settingsApi = mock(SettingsApi.class);
+
+        final ResolvedSetting resolvedSetting = new ResolvedSetting();
+        resolvedSetting.setValue("valueFromSettingsService");
+        when(settingsApi.getResolvedSetting("exampleSetting", "repository-rId,tenantId-tId-some-suffix", "1,2"))
+                .thenReturn(resolvedSetting)
+                .thenThrow(new ApiException(503, "Service Unavailable"));
+
+        final WorkflowWorkerConfiguration configuration = new WorkflowWorkerConfiguration();
+        configuration.setSettingsServiceUrl("");
+        configuration.setSettingsServiceCircuitBreakerFailureThreshold(2);
+        configuration.setSettingsServiceMaxStaleSeconds(60);
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, configuration);
+
+        // A settings update after the settings were last read forces every lookup to be sent to the settings service
+        final Optional<Long> settingsServiceLastUpdateTime
+            = Optional.of(Instant.now().toEpochMilli() + TimeUnit.MINUTES.toMillis(1));
+        for (int index = 0; index < 4; index++) {
+            final Document document = DocumentBuilder.configure().withServices(TestServices.createDefault())
+                    .withCustomData()
+                    .add("workflowName", "sample-workflow")
+                    .add("repositoryId", "rId")
+                    .add("tenantId", "tId")
+                    .documentBuilder()
+                    .withFields()
+                    .documentBuilder()
+                    .build();
+
+            argumentsManager.addArgumentsToDocument(argumentDefinitions, document, settingsServiceLastUpdateTime);
+
+            final Gson gson = new Gson();
+            final Type type = new TypeToken<Map<String, String>>() {}.getType();
+            final Map<String, String> arguments = gson.fromJson(
+                    document.getField("CAF_WORKFLOW_SETTINGS").getStringValues().stream().findFirst().get(), type);
+
+            assertEquals("valueFromSettingsService", arguments.get("example"));
+        }
+
+        // The second and third lookups fail and open the circuit, so the fourth lookup is not sent
+        verify(settingsApi, times(3))
+                .getResolvedSetting("exampleSetting", "repository-rId,tenantId-tId-some-suffix", "1,2");
+        assertTrue(argumentsManager.isSettingsServiceCircuitOpen());
+        assertEquals(3, argumentsManager.getSettingsStaleValueCount());
+    }
+
+    @Test
+    public void clientErrorsDoNotOpenCircuitTest() throws Exception {
+
+        final List<ArgumentDefinition> argumentDefinitions = getArgumentDefinitions();
+
+        final SettingsApi settingsApi = mock(SettingsApi.class);
+        when(settingsApi.getResolvedSetting("exampleSetting", "repository-rId,tenantId-tId-some-suffix", "1,2"))
+                .thenThrow(new ApiException(400, "Bad Request"));
+
+        final WorkflowWorkerConfiguration configuration = new WorkflowWorkerConfiguration();
+        configuration.setSettingsServiceUrl("");
+        configuration.setSettingsServiceCircuitBreakerFailureThreshold(2);
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, configuration);
+
+        for (int index = 0; index < 3; index++) {
+            assertThrows(DocumentWorkerTransientException.class,
+                         () -> getExampleArgument(argumentsManager, argumentDefinitions));
+        }
+
+        // The settings service responded to every request, so each lookup is still sent to it
+        verify(settingsApi, times(3))
+                .getResolvedSetting("exampleSetting", "repository-rId,tenantId-tId-some-suffix", "1,2");
+        assertFalse(argumentsManager.isSettingsServiceCircuitOpen());
+    }
+
+    @Test
+    public void persistentlyCachedSettingUsedAfterRestartWhileUnreachableTest(@TempDir final Path cacheDirectory)
+        throws Exception {
+
+        final List<ArgumentDefinition> argumentDefinitions = getArgumentDefinitions();
+
+        final HttpServer settingsService = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        settingsService.createContext("/", exchange -> {
+            final byte[] body = "{\"value\":\"valueFromSettingsService\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (final OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(body);
+            }
+        });
+        settingsService.start();
+        final String settingsServiceUrl = "http://localhost:" + settingsService.getAddress().getPort();
+        try (final ArgumentsManager argumentsManager
+                 = new ArgumentsManager(createPersistentCacheConfiguration(settingsServiceUrl, cacheDirectory, 60))) {
+            assertEquals("valueFromSettingsService", getExampleArgument(argumentsManager, argumentDefinitions));
+        } finally {
+            settingsService.stop(0);
+        }
+
+        // The settings are updated after the setting was cached, and the worker restarts while the settings service cannot be
+        // reached, so the cached value is looked up again and the lookup fails
+        Thread.sleep(10);
+        final Optional<Long> settingsServiceLastUpdateTime = Optional.of(Instant.now().toEpochMilli());
+        try (final ArgumentsManager restartedArgumentsManager
+                 = new ArgumentsManager(createPersistentCacheConfiguration(settingsServiceUrl, cacheDirectory, 60))) {
+            for (int index = 0; index < 2; index++) {
+                assertEquals("valueFromSettingsService",
+                             getExampleArgument(restartedArgumentsManager, argumentDefinitions, settingsServiceLastUpdateTime));
+            }
+            assertEquals(2, restartedArgumentsManager.getSettingsStaleValueCount());
+            final long staleValueMaxAgeMillis = restartedArgumentsManager.getSettingsStaleValueMaxAgeMillis();
+            assertTrue(staleValueMaxAgeMillis > 0 && staleValueMaxAgeMillis < TimeUnit.SECONDS.toMillis(60),
+                       "Unexpected stale value age: " + staleValueMaxAgeMillis);
+        }
+
+        // The cached value is older than settingsServiceMaxStaleSeconds allows, so it is not used
+        Thread.sleep(1100);
+        try (final ArgumentsManager strictArgumentsManager
+                 = new ArgumentsManager(createPersistentCacheConfiguration(settingsServiceUrl, cacheDirectory, 1))) {
+            assertThrows(DocumentWorkerTransientException.class,
+                         () -> getExampleArgument(strictArgumentsManager, argumentDefinitions, settingsServiceLastUpdateTime));
+            assertEquals(0, strictArgumentsManager.getSettingsStaleValueCount());
+        }
+    }
+
+    private static WorkflowWorkerConfiguration createPersistentCacheConfiguration(
+        final String settingsServiceUrl,
+        final Path cacheDirectory,
+        final int maxStaleSeconds
+    ) {
+        final WorkflowWorkerConfiguration configuration = new WorkflowWorkerConfiguration();
+        configuration.setSettingsServiceUrl(settingsServiceUrl);
+        configuration.setSettingsServiceCacheDirectory(cacheDirectory.toString());
+        configuration.setSettingsServiceMaxStaleSeconds(maxStaleSeconds);
+        configuration.setSettingsServiceConnectTimeoutSeconds(1);
+        return configuration;
+    }
+
+    @Test
+    public void healthCheckedInBackgroundTest() throws Exception {
+
+        final SettingsApi settingsApi = mock(SettingsApi.class);
+        final CountDownLatch settingsServiceResponding = new CountDownLatch(1);
+        when(settingsApi.getSetting("healthcheck")).thenAnswer(invocation -> {
+            settingsServiceResponding.await();
+            throw new ApiException(503, "Service Unavailable");
+        });
+
+        final WorkflowWorkerConfiguration configuration = new WorkflowWorkerConfiguration();
+        configuration.setSettingsServiceUrl("");
+        configuration.setSettingsServiceHealthCheckIntervalSeconds(60);
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, configuration);
+
+        // The manager is created without waiting for the first check, and is unhealthy until it completes
+        final RuntimeException uncheckedFailure = assertThrows(RuntimeException.class, argumentsManager::checkHealth);
+        assertEquals("The settings service health has not been checked yet.", uncheckedFailure.getMessage());
+        settingsServiceResponding.countDown();
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        RuntimeException healthCheckFailure = uncheckedFailure;
+        while (healthCheckFailure == uncheckedFailure && System.nanoTime() < deadline) {
+            try {
+                argumentsManager.checkHealth();
+            } catch (final RuntimeException ex) {
+                if (!ex.getMessage().equals(uncheckedFailure.getMessage())) {
+                    healthCheckFailure = ex;
+                }
+            }
+            Thread.sleep(10);
+        }
+
+        assertTrue(healthCheckFailure.getMessage().startsWith("Service Unavailable (checked "));
+
+        // Later health checks report the same result without contacting the settings service
+        assertThrows(RuntimeException.class, argumentsManager::checkHealth);
+        verify(settingsApi, times(1)).getSetting("healthcheck");
+    }
+
+    @Test
+    public void settingsServiceArgumentsResolvedInSourceOrderTest() throws Exception {
+
+        final List<ArgumentDefinition> argumentDefinitions = new ArrayList<>();
+        argumentDefinitions.add(createArgumentDefinition("first",
+            createSource("firstSetting", ArgumentDefinition.SourceType.SETTINGS_SERVICE, "tenantId-%cd:tenantId%"),
+            createSource("firstCustomData", ArgumentDefinition.SourceType.CUSTOM_DATA, null),
+            createSource("unusedSetting", ArgumentDefinition.SourceType.SETTINGS_SERVICE, "tenantId-%cd:tenantId%")));
+        argumentDefinitions.add(createArgumentDefinition("second",
+            createSource("secondSetting", ArgumentDefinition.SourceType.SETTINGS_SERVICE, "tenantId-%cd:tenantId%")));
+        argumentDefinitions.add(createArgumentDefinition("third",
+            createSource("missingSetting", ArgumentDefinition.SourceType.SETTINGS_SERVICE, "tenantId-%cd:tenantId%"),
+            createSource("thirdSetting", ArgumentDefinition.SourceType.SETTINGS_SERVICE, "tenantId-%cd:tenantId%")));
+
+        final SettingsApi settingsApi = mock(SettingsApi.class);
+
+        final ResolvedSetting secondSetting = new ResolvedSetting();
+        secondSetting.setValue("secondValue");
+        when(settingsApi.getResolvedSetting("secondSetting", "tenantId-tId", "1")).thenReturn(secondSetting);
+        final ResolvedSetting thirdSetting = new ResolvedSetting();
+        thirdSetting.setValue("thirdValue");
+        when(settingsApi.getResolvedSetting("thirdSetting", "tenantId-tId", "1")).thenReturn(thirdSetting);
+
+        final Document document = DocumentBuilder.configure().withServices(TestServices.createDefault())
+                .withCustomData()
+                .add("workflowName", "sample-workflow")
+                .add("tenantId", "tId")
+                .add("firstCustomData", "firstValue")
+                .documentBuilder()
+                .withFields()
+                .documentBuilder()
+                .build();
+
+        final ArgumentsManager argumentsManager = createArgumentsManager(settingsApi, settingsApi, "");
+        argumentsManager.addArgumentsToDocument(argumentDefinitions, document, Optional.empty());
+
+        final Gson gson = new Gson();
+        final Type type = new TypeToken<Map<String, String>>() {}.getType();
+        final Map<String, String> arguments = gson.fromJson(
+                document.getField("CAF_WORKFLOW_SETTINGS").getStringValues().stream().findFirst().get(), type);
+
+        assertEquals("firstValue", arguments.get("first"));
+        assertEquals("secondValue", arguments.get("second"));
+        assertEquals("thirdValue", arguments.get("third"));
+        verify(settingsApi, never()).getResolvedSetting("unusedSetting", "tenantId-tId", "1");
+    }
+
+    private static ArgumentDefinition createArgumentDefinition(
+        final String name,
+        final ArgumentDefinition.Source... sources
+    ) {
+        final ArgumentDefinition argumentDefinition = new ArgumentDefinition();
+        argumentDefinition.setName(name);
+        argumentDefinition.setSources(new ArrayList<>(Arrays.asList(sources)));
+        return argumentDefinition;
+    }
+
+    private static ArgumentDefinition.Source createSource(
+        final String name,
+        final ArgumentDefinition.SourceType type,
+        final String options
+    ) {
+        final ArgumentDefinition.Source source = new ArgumentDefinition.Source();
+        source.setName(name);
+        source.setType(type);
+        source.setOptions(options);
+        return source;
+    }
+
     private List<ArgumentDefinition> getArgumentDefinitions() {
         final List<ArgumentDefinition> argumentDefinitions = new ArrayList<>();
         ArgumentDefinition argumentDefinition = new ArgumentDefinition();
@@ -22,6 +22,8 @@ import com.hpe.caf.worker.document.model.Scripts;
 import com.hpe.caf.worker.document.testing.DocumentBuilder;
 import com.hpe.caf.worker.document.testing.TestServices;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayInputStream;
@@ -58,9 +60,84 @@ public class ScriptManagerTest {
         final Script inlineScript = scripts.get(0);
         assertEquals("temp-workflow.js", inlineScript.getName());
         assertEquals(testScript, inlineScript.getScript());
+        // The temporary script is not installed, so it is not sent on to the next worker
+        assertTrue(inlineScript.isLoaded());
+        assertFalse(inlineScript.isInstalled());
 
         final Script referencedScript = scripts.get(1);
         assertEquals("workflow.js", referencedScript.getName());
         assertEquals(testScript, referencedScript.getScript());
     }
+
+    @Test
+    public void applyScriptsWithControlLibraryTest() throws Exception {
+
+        final ScriptManager scriptManager = new ScriptManager();
+        final Workflow workflow = new Workflow();
+        final TestServices testServices = TestServices.createDefault();
+        final String actionsScript = "var ACTIONS = [];";
+        final String controlLibraryScript = "var a = 'example';";
+
+        workflow.setActionsScript(actionsScript);
+        workflow.setControlLibraryScript(controlLibraryScript);
+        workflow.setWorkflowScript(actionsScript + controlLibraryScript);
+        workflow.setStorageReference(testServices.getDataStore().store(
+                new ByteArrayInputStream(actionsScript.getBytes(StandardCharsets.UTF_8)), "partial"));
+        workflow.setControlLibraryStorageReference(testServices.getDataStore().store(
+                new ByteArrayInputStream(controlLibraryScript.getBytes(StandardCharsets.UTF_8)), "partial"));
+
+        final Document document = DocumentBuilder.configure().withServices(testServices)
+                .withCustomData()
+                .documentBuilder()
+                .withFields()
+                .documentBuilder()
+                .build();
+
+        scriptManager.applyScriptToDocument(workflow, document);
+
+        final Scripts scripts = document.getTask().getScripts();
+        assertEquals(3, scripts.size());
+
+        assertEquals("temp-workflow.js", scripts.get(0).getName());
+        assertEquals(actionsScript + controlLibraryScript, scripts.get(0).getScript());
+
+        assertEquals("workflow.js", scripts.get(1).getName());
+        assertEquals(actionsScript, scripts.get(1).getScript());
+
+        assertEquals("workflow-control.js", scripts.get(2).getName());
+        assertEquals(controlLibraryScript, scripts.get(2).getScript());
+    }
+
+    @Test
+    public void applyScriptsWithWorkflowScriptCacheTest() throws Exception {
+
+        final ScriptManager scriptManager = new ScriptManager(new WorkflowScriptCache());
+        final Workflow workflow = new Workflow();
+        final TestServices testServices = TestServices.createDefault();
+        final String testScript = "function routeCachedTask(rootDocument) { rootDocument.getField('ROUTED').add('true'); }";
+
+        workflow.setWorkflowScript(testScript);
+        final String storedScriptReference = testServices.getDataStore().store(
+                new ByteArrayInputStream(workflow.getWorkflowScript().getBytes(StandardCharsets.UTF_8)), "partial");
+
+        workflow.setStorageReference(storedScriptReference);
+
+        final Document document = DocumentBuilder.configure().withServices(testServices)
+                .withCustomData()
+                .documentBuilder()
+                .withFields()
+                .documentBuilder()
+                .build();
+
+        scriptManager.applyScriptToDocument(workflow, document);
+
+        final Scripts scripts = document.getTask().getScripts();
+        assertEquals(1, scripts.size());
+
+        final Script referencedScript = scripts.get(0);
+        assertEquals("workflow.js", referencedScript.getName());
+        assertEquals(testScript, referencedScript.getScript());
+
+        assertEquals("true", document.getField("ROUTED").getStringValues().get(0));
+    }
 }
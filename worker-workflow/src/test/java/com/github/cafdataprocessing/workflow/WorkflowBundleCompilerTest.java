@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.workflow;
+
+import com.github.cafdataprocessing.workflow.model.Workflow;
+import com.hpe.caf.api.ConfigurationException;
+import com.hpe.caf.worker.document.model.Document;
+import com.hpe.caf.worker.document.testing.DocumentBuilder;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class WorkflowBundleCompilerTest
+{
+    @Test
+    public void bundledWorkflowsMatchWorkflowFilesTest(@TempDir final Path tempDirectory) throws Exception
+    {
+        final String workflowDirectory = WorkflowDirectoryProvider.getWorkflowDirectory("workflow-worker-test");
+        final File bundleFile = tempDirectory.resolve("workflows.bundle.json").toFile();
+        assertEquals(2, WorkflowBundleCompiler.compile(new File(workflowDirectory), bundleFile));
+
+        final Document document = DocumentBuilder.configure().build();
+        final WorkflowManager workflowManager = new WorkflowManager(document.getApplication(), workflowDirectory, null);
+        final WorkflowWorkerConfiguration configuration = new WorkflowWorkerConfiguration();
+        configuration.setWorkflowsDirectory(workflowDirectory);
+        configuration.setWorkflowBundlePath(bundleFile.toString());
+        final WorkflowManager bundledWorkflowManager = new WorkflowManager(document.getApplication(), configuration);
+
+        for (final String workflowName : new String[]{"sample-workflow", "sample-message-prioritization-workflow"}) {
+            final Workflow workflow = workflowManager.get(workflowName);
+            final Workflow bundledWorkflow = bundledWorkflowManager.get(workflowName);
+            assertEquals(workflow.getWorkflowScript(), bundledWorkflow.getWorkflowScript());
+            assertEquals(workflow.getStorageReferenceForWorkflowScript(), bundledWorkflow.getStorageReferenceForWorkflowScript());
+            assertEquals(workflow.getArguments().size(), bundledWorkflow.getArguments().size());
+        }
+    }
+
+    @Test
+    public void invalidWorkflowsReportedTest(@TempDir final Path tempDirectory) throws Exception
+    {
+        final Path workflowsDirectory = Files.createDirectory(tempDirectory.resolve("workflows"));
+        for (final String workflowName : new String[]{"b-workflow", "a-workflow"}) {
+            Files.write(workflowsDirectory.resolve(workflowName + ".yaml"),
+                        String.format("actions:%n  - name: %1$s%n  - name: %1$s%n", workflowName).getBytes(StandardCharsets.UTF_8));
+        }
+        final File bundleFile = tempDirectory.resolve("workflows.bundle.json").toFile();
+
+        final ConfigurationException exception = assertThrows(ConfigurationException.class,
+            () -> WorkflowBundleCompiler.compile(workflowsDirectory.toFile(), bundleFile));
+        assertEquals("Workflow [a-workflow] is not valid. Duplicated action name [a-workflow].", exception.getMessage());
+        assertEquals(1, exception.getSuppressed().length);
+        assertEquals("Workflow [b-workflow] is not valid. Duplicated action name [b-workflow].",
+                     exception.getSuppressed()[0].getMessage());
+        assertFalse(bundleFile.exists());
+    }
+}
@@ -41,10 +41,12 @@ import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import static java.util.stream.Collectors.toList;
 import javax.script.Invocable;
+import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.hasItems;
@@ -1513,4 +1515,114 @@ public class WorkflowControlTest
         assertFalse(functionResult);
 
     }
+
+    @Test
+    public void fieldHasAnyStringValueWithJavaSetTest() throws ScriptException, NoSuchMethodException, WorkerException, IOException
+    {
+        final Invocable invocable = WorkflowHelper.createInvocableJavascriptEngineWithActionsAndWorkflowControl();
+
+        final Document document = DocumentBuilder.configure().withFields()
+                .addFieldValue("CONTENT_PRIMARY", "Some content")
+                .addFieldValue("TYPE", "1")
+                .documentBuilder().build();
+
+        assertTrue((boolean) invocable.invokeFunction("fieldHasAnyStringValue", document, "TYPE",
+                                                       new HashSet<>(Arrays.asList("1", "2", "3"))));
+        assertFalse((boolean) invocable.invokeFunction("fieldHasAnyStringValue", document, "TYPE",
+                                                        new HashSet<>(Arrays.asList("2", "3"))));
+        assertFalse((boolean) invocable.invokeFunction("fieldHasAnyStringValue", document, "TYPE", new HashSet<>()));
+    }
+
+    @Test
+    public void fieldConditionsWithoutWorkflowFunctionsTest()
+        throws ScriptException, NoSuchMethodException, WorkerException, IOException
+    {
+        final Invocable invocable = WorkflowHelper.createInvocableJavascriptEngineWithoutWorkflowFunctions();
+        assertEquals(true, ((ScriptEngine) invocable).eval("WorkflowFunctions === null"));
+
+        final Document document = DocumentBuilder.configure().withFields()
+                .addFieldValue("CONTENT_PRIMARY", "Some content")
+                .addFieldValue("TYPE", "1")
+                .documentBuilder().build();
+
+        assertTrue((boolean) invocable.invokeFunction("fieldHasStringValue", document, "TYPE", "1"));
+        assertFalse((boolean) invocable.invokeFunction("fieldHasStringValue", document, "TYPE", "100"));
+
+        assertTrue((boolean) invocable.invokeFunction("fieldHasAnyStringValue", document, "TYPE",
+                                                       new String[] {"1", "2", "3", "4", "5"}));
+        assertFalse((boolean) invocable.invokeFunction("fieldHasAnyStringValue", document, "TYPE",
+                                                        new String[] {"2", "3", "4", "5"}));
+        assertFalse((boolean) invocable.invokeFunction("fieldHasAnyStringValue", document, "MISSING",
+                                                        new String[] {"1"}));
+        assertTrue((boolean) invocable.invokeFunction("fieldHasAnyStringValue", document, "TYPE",
+                                                       new HashSet<>(Arrays.asList("1", "2"))));
+
+        assertTrue((boolean) invocable.invokeFunction("isEmptyMap", (Object) null));
+        assertTrue((boolean) invocable.invokeFunction("isEmptyMap", ""));
+        assertTrue((boolean) invocable.invokeFunction("isEmptyMap", " { \n } "));
+        assertFalse((boolean) invocable.invokeFunction("isEmptyMap", "{\"key\": \"value\"}"));
+    }
+
+    @Test
+    public void isEmptyMapTest() throws ScriptException, NoSuchMethodException, IOException
+    {
+        final Invocable invocable = WorkflowHelper.createInvocableJavascriptEngineWithActionsAndWorkflowControl();
+
+        assertTrue((boolean) invocable.invokeFunction("isEmptyMap", (Object) null));
+        assertTrue((boolean) invocable.invokeFunction("isEmptyMap", ""));
+        assertTrue((boolean) invocable.invokeFunction("isEmptyMap", " { \n } "));
+        assertFalse((boolean) invocable.invokeFunction("isEmptyMap", "{\"key\": \"value\"}"));
+    }
+
+    @Test
+    public void extractArgumentsReparsedWhenSettingsChangeTest()
+        throws ScriptException, NoSuchMethodException, WorkerException, IOException
+    {
+        final Invocable invocable = WorkflowHelper.createInvocableJavascriptEngineWithActionsAndWorkflowControl();
+
+        final Document document = DocumentBuilder.configure().withFields()
+                .addFieldValue("CAF_WORKFLOW_SETTINGS", "{\"TENANT\":\"first\"}")
+                .documentBuilder().build();
+
+        final Map<?, ?> firstArguments = (Map<?, ?>) invocable.invokeFunction("extractArguments", document);
+        assertEquals("first", firstArguments.get("TENANT"));
+
+        final Map<?, ?> cachedArguments = (Map<?, ?>) invocable.invokeFunction("extractArguments", document);
+        assertEquals("first", cachedArguments.get("TENANT"));
+
+        document.getField("CAF_WORKFLOW_SETTINGS").set("{\"TENANT\":\"second\"}");
+
+        final Map<?, ?> changedArguments = (Map<?, ?>) invocable.invokeFunction("extractArguments", document);
+        assertEquals("second", changedArguments.get("TENANT"));
+    }
+
+    @Test
+    public void extractArgumentsChangesNotSharedTest()
+        throws ScriptException, NoSuchMethodException, WorkerException, IOException
+    {
+        final Invocable invocable = WorkflowHelper.createInvocableJavascriptEngineWithActionsAndWorkflowControl();
+        final String settings = "{\"TENANT\":\"first\",\"NESTED\":{\"VALUE\":\"first\"},\"LIST\":[\"first\"]}";
+
+        final Document firstDocument = DocumentBuilder.configure().withFields()
+                .addFieldValue("CAF_WORKFLOW_SETTINGS", settings)
+                .documentBuilder().build();
+        final ScriptEngine scriptEngine = (ScriptEngine) invocable;
+        scriptEngine.put("firstDocument", firstDocument);
+        scriptEngine.eval("var firstArguments = extractArguments(firstDocument);\n"
+            + "firstArguments.TENANT = 'changed';\n"
+            + "firstArguments.NESTED.VALUE = 'changed';\n"
+            + "try {\n"
+            + "    firstArguments.LIST.push('changed');\n"
+            + "} catch (e) {\n"
+            + "}\n"
+            + "delete firstArguments.NESTED;");
+
+        final Document secondDocument = DocumentBuilder.configure().withFields()
+                .addFieldValue("CAF_WORKFLOW_SETTINGS", settings)
+                .documentBuilder().build();
+        final Map<?, ?> secondArguments = (Map<?, ?>) invocable.invokeFunction("extractArguments", secondDocument);
+        assertEquals("first", secondArguments.get("TENANT"));
+        assertEquals("first", ((Map<?, ?>) secondArguments.get("NESTED")).get("VALUE"));
+        assertEquals(Arrays.asList("first"), secondArguments.get("LIST"));
+    }
 }
@@ -20,23 +20,55 @@ import com.github.cafdataprocessing.workflow.model.ArgumentDefinition;
 import com.github.cafdataprocessing.workflow.model.Workflow;
 import com.hpe.caf.api.ConfigurationException;
 import com.hpe.caf.api.worker.WorkerException;
+import com.hpe.caf.api.worker.DataStore;
+import com.hpe.caf.worker.document.model.Application;
 import com.hpe.caf.worker.document.model.Document;
+import com.hpe.caf.worker.document.model.Script;
+import com.hpe.caf.worker.document.model.ScriptEngineType;
+import com.hpe.caf.worker.document.model.Scripts;
 import com.hpe.caf.worker.document.testing.DocumentBuilder;
 import com.hpe.caf.worker.document.testing.TestServices;
 import com.google.common.io.Resources;
 import com.hpe.caf.worker.document.scripting.events.CancelableDocumentEventObject;
+import com.hpe.caf.worker.document.scripting.events.DocumentEventObject;
+import com.hpe.caf.worker.document.scripting.events.TaskEventObject;
 import com.oracle.truffle.js.scriptengine.GraalJSScriptEngine;
 import org.apache.commons.io.IOUtils;
 import org.graalvm.polyglot.Context;
 import org.graalvm.polyglot.HostAccess;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.script.Invocable;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
@@ -68,7 +100,14 @@ public class WorkflowManagerTest {
         final String storedScript = IOUtils.toString(testServices.getDataStore().retrieve(storedScriptReference),
                 StandardCharsets.UTF_8);
 
-        assertEquals(workflow.getWorkflowScript(), storedScript);
+        assertEquals(workflow.getActionsScript(), storedScript);
+
+        final String storedControlLibraryReference = workflow.getStorageReferenceForControlLibrary();
+        final String storedControlLibrary = IOUtils.toString(
+                testServices.getDataStore().retrieve(storedControlLibraryReference), StandardCharsets.UTF_8);
+
+        assertEquals(workflow.getControlLibraryScript(), storedControlLibrary);
+        assertEquals(workflow.getActionsScript() + workflow.getControlLibraryScript(), workflow.getWorkflowScript());
 
         final List<ArgumentDefinition> argumentDefinitions = workflow.getArguments();
         assertNotNull(argumentDefinitions);
@@ -81,6 +120,40 @@ public class WorkflowManagerTest {
         assertEquals("bulk_index", actions.get(2).getName());
     }
 
+    @Test
+    public void sharedScriptsStoredOnceTest() throws Exception {
+        final Document document = DocumentBuilder.configure().build();
+
+        final WorkflowManager workflowManager = new WorkflowManager(document.getApplication(),
+                WorkflowDirectoryProvider.getWorkflowDirectory("workflow-worker-test"), null);
+
+        final Workflow sampleWorkflow = workflowManager.get("sample-workflow");
+        final Workflow prioritizationWorkflow = workflowManager.get("sample-message-prioritization-workflow");
+
+        assertEquals(sampleWorkflow.getStorageReferenceForControlLibrary(),
+                prioritizationWorkflow.getStorageReferenceForControlLibrary());
+        assertNotEquals(sampleWorkflow.getStorageReferenceForWorkflowScript(),
+                prioritizationWorkflow.getStorageReferenceForWorkflowScript());
+    }
+
+    @Test
+    public void identicalScriptsStoredOnceTest() throws Exception {
+        final Document document = DocumentBuilder.configure().build();
+        final DataStore dataStore = mock(DataStore.class, delegatesTo(document.getApplication().getService(DataStore.class)));
+        final Application application = mock(Application.class);
+        when(application.getService(DataStore.class)).thenReturn(dataStore);
+        final String workflowDirectory = WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-test");
+
+        final Workflow workflow = new WorkflowManager(application, workflowDirectory, null).get("test-workflow");
+        verify(dataStore, times(2)).store(any(byte[].class), eq("workflow-scripts"));
+
+        // Loading the same workflow again reuses the scripts that have already been stored
+        final Workflow reloadedWorkflow = new WorkflowManager(application, workflowDirectory, null).get("test-workflow");
+        verify(dataStore, times(2)).store(any(byte[].class), eq("workflow-scripts"));
+        assertEquals(workflow.getStorageReferenceForWorkflowScript(), reloadedWorkflow.getStorageReferenceForWorkflowScript());
+        assertEquals(workflow.getStorageReferenceForControlLibrary(), reloadedWorkflow.getStorageReferenceForControlLibrary());
+    }
+
     @Test
     public void duplicateActionNameTest() throws WorkerException {
 
@@ -149,15 +222,421 @@ public class WorkflowManagerTest {
         executeOnBeforeProcessDocumentScript(workflowScript, document);
     }
 
-    private static void executeOnBeforeProcessDocumentScript(String workflowScript, Document document)
+    @Test
+    public void conditionFunctionPrecompiledTest() throws Exception
+    {
+        final Document document = getDocumentWithSubDocument();
+
+        final WorkflowManager workflowManager = new WorkflowManager(document.getApplication(),
+                                     WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-test"),
+                                     null);
+
+        final ScriptEngine scriptEngine = createScriptEngine();
+        scriptEngine.eval(workflowManager.get("test-workflow").getWorkflowScript());
+
+        assertEquals("undefined", scriptEngine.eval("typeof ACTIONS[0].condition"));
+        assertEquals("function", scriptEngine.eval("typeof ACTIONS[1].condition"));
+        assertEquals("undefined", scriptEngine.eval("typeof ACTIONS[2].condition"));
+    }
+
+    @Test
+    public void invalidConditionFunctionFailsTest() throws Exception
+    {
+        final Document document = getDocumentWithSubDocument();
+        document.getField("CAF_WORKFLOW_ACTION").add("lang_detect");
+        document.getField("CAF_WORKFLOW_SETTINGS").add("{}");
+
+        final WorkflowManager workflowManager = new WorkflowManager(document.getApplication(),
+                                     WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-test"),
+                                     null);
+
+        final ScriptEngine scriptEngine = createScriptEngine();
+        scriptEngine.eval(workflowManager.get("test-workflow").getWorkflowScript());
+        // A condition function whose name is misspelt is not precompiled, so it is left to the control library
+        scriptEngine.eval("ACTIONS[1].condition = undefined;\n"
+            + "ACTIONS[1].conditionFunction = 'function conditon(document, args) { return true; }';");
+
+        final ScriptException exception = assertThrows(ScriptException.class, () -> ((Invocable) scriptEngine)
+            .invokeFunction("onBeforeProcessDocument", new CancelableDocumentEventObject(document)));
+        assertTrue(exception.getMessage().contains("must define a function called condition"));
+    }
+
+    @Test
+    public void conditionFunctionSyntaxErrorTest(@TempDir final Path workflowsDirectory) throws Exception
+    {
+        Files.write(workflowsDirectory.resolve("test-workflow.yaml"), String.join("\n",
+            "actions:",
+            "  - name: lang_detect",
+            "    conditionFunction: |",
+            "      function condition(document) {",
+            "        return fieldExists(document, 'CONTENT_PRIMARY';",
+            "      }",
+            "").getBytes(StandardCharsets.UTF_8));
+
+        final Document document = DocumentBuilder.configure().build();
+        final ConfigurationException exception = assertThrows(ConfigurationException.class, () -> new WorkflowManager(
+            document.getApplication(), workflowsDirectory.toString(), null));
+        assertTrue(exception.getMessage().startsWith("The conditionFunction of action [lang_detect] is not valid."),
+                   exception.getMessage());
+    }
+
+    @Test
+    public void separatelyInstalledScriptsTest() throws Exception
+    {
+        final Document document = DocumentBuilder.configure().withFields()
+            .addFieldValue("CONTENT_PRIMARY", "Some content")
+            .addFieldValue("CAF_WORKFLOW_SETTINGS", "{}")
+            .documentBuilder().build();
+
+        final WorkflowManager workflowManager = new WorkflowManager(document.getApplication(),
+                                     WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-test"),
+                                     null);
+        final Workflow workflow = workflowManager.get("test-workflow");
+
+        // A downstream worker evaluates each installed script on its own, so the control library evaluates workflow.js for ACTIONS
+        final Scripts scripts = document.getTask().getScripts();
+        final Invocable actionsScript = installScript(scripts, "workflow.js", workflow.getStorageReferenceForWorkflowScript());
+        final Invocable controlLibrary = installScript(scripts, "workflow-control.js",
+                                                       workflow.getStorageReferenceForControlLibrary());
+
+        controlLibrary.invokeFunction("onAfterProcessTask", new TaskEventObject(document.getTask()));
+        for (final String expectedAction : new String[]{"family_hashing", "lang_detect", "bulk_index"}) {
+            assertEquals(expectedAction, document.getField("CAF_WORKFLOW_ACTION").getStringValues().get(0));
+            assertEquals(expectedAction + "-in", document.getTask().getResponse().getSuccessQueue().getName());
+
+            actionsScript.invokeFunction("onProcessTask", new TaskEventObject(document.getTask()));
+            controlLibrary.invokeFunction("onProcessTask", new TaskEventObject(document.getTask()));
+            controlLibrary.invokeFunction("onAfterProcessDocument", new DocumentEventObject(document));
+            controlLibrary.invokeFunction("onAfterProcessTask", new TaskEventObject(document.getTask()));
+        }
+
+        assertFalse(document.getField("CAF_WORKFLOW_ACTION").hasValues());
+        assertEquals(Arrays.asList("family_hashing", "lang_detect", "bulk_index"),
+                     document.getField("CAF_WORKFLOW_ACTIONS_COMPLETED").getStringValues());
+    }
+
+    @Test
+    public void loadedActionsScriptTest() throws Exception
+    {
+        final Document document = DocumentBuilder.configure().withFields()
+            .addFieldValue("CONTENT_PRIMARY", "Some content")
+            .addFieldValue("CAF_WORKFLOW_SETTINGS", "{}")
+            .documentBuilder().build();
+
+        final WorkflowManager workflowManager = new WorkflowManager(document.getApplication(),
+                                     WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-test"),
+                                     null);
+        final Workflow workflow = workflowManager.get("test-workflow");
+
+        // When workflow.js has been loaded the control library uses the actions from its script object rather than evaluating it
+        final Scripts scripts = document.getTask().getScripts();
+        final Script actionsScript = scripts.add();
+        actionsScript.setName("workflow.js");
+        actionsScript.setScriptByReference(workflow.getStorageReferenceForWorkflowScript(), ScriptEngineType.GRAAL_JS);
+        actionsScript.install();
+        actionsScript.load();
+        final ScriptEngine controlLibraryEngine = createScriptEngine();
+        final Invocable controlLibrary = (Invocable) controlLibraryEngine;
+        final Script controlLibraryScript = scripts.add();
+        controlLibraryScript.setName("workflow-control.js");
+        controlLibraryScript.setScriptByReference(workflow.getStorageReferenceForControlLibrary(), ScriptEngineType.GRAAL_JS);
+        controlLibraryScript.install();
+        controlLibraryEngine.put("thisScript", controlLibraryScript);
+        controlLibraryEngine.eval(controlLibraryScript.getScript());
+
+        // Changing the loaded actions shows that the control library routes with them
+        final Map<?, ?> actionsScriptObject = (Map<?, ?>) actionsScript.getObject();
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> lastAction = (Map<String, Object>) ((List<?>) actionsScriptObject.get("actions")).get(2);
+        lastAction.put("queueName", "loaded-bulk_index-in");
+
+        controlLibrary.invokeFunction("onAfterProcessTask", new TaskEventObject(document.getTask()));
+        for (final String expectedAction : new String[]{"family_hashing", "lang_detect", "bulk_index"}) {
+            assertEquals(expectedAction, document.getField("CAF_WORKFLOW_ACTION").getStringValues().get(0));
+            assertEquals(expectedAction.equals("bulk_index") ? "loaded-bulk_index-in" : expectedAction + "-in",
+                         document.getTask().getResponse().getSuccessQueue().getName());
+
+            controlLibrary.invokeFunction("onProcessTask", new TaskEventObject(document.getTask()));
+            controlLibrary.invokeFunction("onAfterProcessDocument", new DocumentEventObject(document));
+            controlLibrary.invokeFunction("onAfterProcessTask", new TaskEventObject(document.getTask()));
+        }
+
+        assertFalse(document.getField("CAF_WORKFLOW_ACTION").hasValues());
+        assertEquals(Arrays.asList("family_hashing", "lang_detect", "bulk_index"),
+                     document.getField("CAF_WORKFLOW_ACTIONS_COMPLETED").getStringValues());
+    }
+
+    @Test
+    public void actionIndexTest() throws Exception
     {
-        final ScriptEngine scriptEngine = GraalJSScriptEngine.create(
+        final Document document = getDocumentWithSubDocument();
+
+        final WorkflowManager workflowManager = new WorkflowManager(document.getApplication(),
+                                     WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-test"),
+                                     null);
+
+        final ScriptEngine scriptEngine = createScriptEngine();
+        scriptEngine.eval(workflowManager.get("test-workflow").getWorkflowScript());
+
+        assertEquals(2, scriptEngine.eval("ACTION_INDEX['bulk_index']"));
+        assertEquals(1, scriptEngine.eval("getActionIndex('lang_detect')"));
+        assertEquals(-1, scriptEngine.eval("getActionIndex('unknown_action')"));
+    }
+
+    @Test
+    public void declarativeConditionTest() throws Exception
+    {
+        final Document document = DocumentBuilder.configure().build();
+
+        final WorkflowManager workflowManager = new WorkflowManager(document.getApplication(),
+                                     WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-condition-test"),
+                                     null);
+
+        final ScriptEngine scriptEngine = createScriptEngine();
+        scriptEngine.eval(workflowManager.get("test-workflow").getWorkflowScript());
+        scriptEngine.eval("function evaluateCondition(index, document, args) {\n"
+            + "    return ACTIONS[index].condition(document, JSON.parse(args));\n"
+            + "}");
+        final Invocable invocable = (Invocable) scriptEngine;
+
+        final Document englishDocument = DocumentBuilder.configure().withFields()
+            .addFieldValue("CONTENT_PRIMARY", "Some content")
+            .addFieldValue("LANGUAGE", "en")
+            .documentBuilder().build();
+        final Document emailDocument = DocumentBuilder.configure().withFields()
+            .addFieldValue("CONTENT_PRIMARY", "Some content")
+            .addFieldValue("DOCUMENT_TYPE", "email")
+            .documentBuilder().build();
+
+        assertEquals(false, invocable.invokeFunction("evaluateCondition", 0, englishDocument, "{}"));
+        assertEquals(true, invocable.invokeFunction("evaluateCondition", 0, emailDocument, "{}"));
+
+        assertEquals(false, invocable.invokeFunction("evaluateCondition", 1, englishDocument, "{}"));
+        assertEquals(true, invocable.invokeFunction("evaluateCondition", 1, emailDocument, "{}"));
+        assertEquals(true, invocable.invokeFunction("evaluateCondition", 1, englishDocument,
+                                                    "{\"ee.operationmode\":\"DETECT\"}"));
+
+        assertEquals("undefined", scriptEngine.eval("typeof ACTIONS[2].condition"));
+    }
+
+    @Test
+    public void conditionAndConditionFunctionTest() throws WorkerException
+    {
+        final Document document = DocumentBuilder.configure().build();
+
+        final ConfigurationException exception = assertThrows(ConfigurationException.class, () -> new WorkflowManager(
+            document.getApplication(),
+            WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-condition-and-function-test"),
+            null));
+        assertEquals("Action [lang_detect] must not define both a condition and a conditionFunction.", exception.getMessage());
+    }
+
+    @Test
+    public void invalidSettingsScopeTest() throws WorkerException
+    {
+        final Document document = DocumentBuilder.configure().build();
+
+        final ConfigurationException exception = assertThrows(ConfigurationException.class, () -> new WorkflowManager(
+            document.getApplication(),
+            WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-invalid-settings-scope-test"),
+            null));
+        assertEquals("Invalid options for settings service source [tenantId] of argument [tenantId]. Invalid scope "
+            + "[tenantId-%cd:TASK_SETTING_TENANTID]. A scope must either be a literal or contain a single %f:name% or %cd:name% "
+            + "placeholder.", exception.getMessage());
+    }
+
+    @Test
+    public void reloadWorkflowsTest(@TempDir final Path workflowsDirectory) throws Exception
+    {
+        final Path workflowFile = workflowsDirectory.resolve("test-workflow.yaml");
+        Files.copy(Paths.get(WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-test"), "test-workflow.yaml"),
+                   workflowFile);
+
+        final Document document = DocumentBuilder.configure().build();
+        final WorkflowManager workflowManager = new WorkflowManager(
+            document.getApplication(), workflowsDirectory.toString(), null);
+        final Workflow originalWorkflow = workflowManager.get("test-workflow");
+
+        // An unchanged file is not reloaded
+        workflowManager.reloadWorkflows();
+        assertSame(originalWorkflow, workflowManager.get("test-workflow"));
+
+        // A broken file is rejected and the previous version of the workflow continues to be used
+        Files.write(workflowFile, "actions: [".getBytes(StandardCharsets.UTF_8));
+        workflowManager.reloadWorkflows();
+        assertSame(originalWorkflow, workflowManager.get("test-workflow"));
+
+        Files.copy(Paths.get(WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-condition-test"), "test-workflow.yaml"),
+                   workflowFile, StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(Paths.get(WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-test"), "test-workflow.yaml"),
+                   workflowsDirectory.resolve("added-workflow.yaml"));
+        workflowManager.reloadWorkflows();
+
+        final Workflow reloadedWorkflow = workflowManager.get("test-workflow");
+        assertNotSame(originalWorkflow, reloadedWorkflow);
+        assertEquals("lang_detect", reloadedWorkflow.getActions().get(0).getName());
+        assertNotNull(workflowManager.get("added-workflow"));
+    }
+
+    @Test
+    public void workflowsDirectoryWatchedTest(@TempDir final Path workflowsDirectory) throws Exception
+    {
+        final Path workflowFile = workflowsDirectory.resolve("test-workflow.yaml");
+        Files.copy(Paths.get(WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-test"), "test-workflow.yaml"),
+                   workflowFile);
+
+        final WorkflowWorkerConfiguration configuration = createConfiguration(workflowsDirectory.toString(), 1);
+        configuration.setReloadWorkflows(true);
+        final Document document = DocumentBuilder.configure().build();
+        try (final WorkflowManager workflowManager = new WorkflowManager(document.getApplication(), configuration)) {
+            assertNull(workflowManager.get("added-workflow"));
+
+            Files.copy(workflowFile, workflowsDirectory.resolve("added-workflow.yaml"));
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (workflowManager.get("added-workflow") == null && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            assertNotNull(workflowManager.get("added-workflow"));
+        }
+    }
+
+    @Test
+    public void parallelLoadTest() throws Exception
+    {
+        final Document document = DocumentBuilder.configure().build();
+        final String workflowDirectory = WorkflowDirectoryProvider.getWorkflowDirectory("workflow-worker-test");
+
+        final WorkflowManager sequentialWorkflowManager = new WorkflowManager(
+            document.getApplication(), createConfiguration(workflowDirectory, 1));
+        final WorkflowManager parallelWorkflowManager = new WorkflowManager(
+            document.getApplication(), createConfiguration(workflowDirectory, 4));
+
+        for (final String workflowName : new String[]{"sample-workflow", "sample-message-prioritization-workflow"}) {
+            assertEquals(sequentialWorkflowManager.get(workflowName).getWorkflowScript(),
+                         parallelWorkflowManager.get(workflowName).getWorkflowScript());
+        }
+    }
+
+    @Test
+    public void parallelLoadFailureOrderTest(@TempDir final Path workflowsDirectory) throws Exception
+    {
+        for (final String workflowName : new String[]{"b-workflow", "a-workflow"}) {
+            Files.write(workflowsDirectory.resolve(workflowName + ".yaml"),
+                        String.format("actions:%n  - name: %1$s%n  - name: %1$s%n", workflowName).getBytes(StandardCharsets.UTF_8));
+        }
+
+        final Document document = DocumentBuilder.configure().build();
+        final ConfigurationException exception = assertThrows(ConfigurationException.class, () -> new WorkflowManager(
+            document.getApplication(), createConfiguration(workflowsDirectory.toString(), 4)));
+        assertEquals("Duplicated action name [a-workflow].", exception.getMessage());
+        assertEquals(1, exception.getSuppressed().length);
+        assertEquals("Duplicated action name [b-workflow].", exception.getSuppressed()[0].getMessage());
+    }
+
+    @Test
+    public void lazyLoadTest(@TempDir final Path workflowsDirectory) throws Exception
+    {
+        final Path workflowFile = workflowsDirectory.resolve("test-workflow.yaml");
+        Files.copy(Paths.get(WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-test"), "test-workflow.yaml"),
+                   workflowFile);
+        Files.write(workflowsDirectory.resolve("broken-workflow.yaml"), "actions: [".getBytes(StandardCharsets.UTF_8));
+
+        final WorkflowWorkerConfiguration configuration = createConfiguration(workflowsDirectory.toString(), 1);
+        configuration.setLazyWorkflowLoading(true);
+        configuration.setWorkflowCacheMaxEntries(1);
+        final Document document = DocumentBuilder.configure().build();
+        // The broken workflow is not loaded until it is requested, so it does not stop the other workflows being used
+        final WorkflowManager workflowManager = new WorkflowManager(document.getApplication(), configuration);
+
+        final Workflow workflow = workflowManager.get("test-workflow");
+        assertNotNull(workflow);
+        assertSame(workflow, workflowManager.get("test-workflow"));
+        assertNull(workflowManager.get("broken-workflow"));
+        assertNull(workflowManager.get("missing-workflow"));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Files.copy(workflowFile, workflowsDirectory.resolve("added-workflow.yaml"));
+            workflowManager.reloadWorkflows();
+            final List<Future<Workflow>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> workflowManager.get("added-workflow")));
+            }
+            final Workflow addedWorkflow = futures.get(0).get();
+            assertNotNull(addedWorkflow);
+            for (final Future<Workflow> future : futures) {
+                assertSame(addedWorkflow, future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Only one workflow is kept, so the first workflow has been discarded and is loaded again
+        final Workflow reloadedWorkflow = workflowManager.get("test-workflow");
+        assertNotSame(workflow, reloadedWorkflow);
+        assertEquals(workflow.getWorkflowScript(), reloadedWorkflow.getWorkflowScript());
+        // The scripts stored when it was first loaded are used again rather than being stored again
+        assertEquals(workflow.getStorageReferenceForWorkflowScript(), reloadedWorkflow.getStorageReferenceForWorkflowScript());
+        assertEquals(workflow.getStorageReferenceForControlLibrary(), reloadedWorkflow.getStorageReferenceForControlLibrary());
+    }
+
+    @Test
+    public void lazyLoadFailureCachedTest(@TempDir final Path workflowsDirectory) throws Exception
+    {
+        final Path workflowFile = workflowsDirectory.resolve("test-workflow.yaml");
+        Files.write(workflowFile, "actions: [".getBytes(StandardCharsets.UTF_8));
+
+        final WorkflowWorkerConfiguration configuration = createConfiguration(workflowsDirectory.toString(), 1);
+        configuration.setLazyWorkflowLoading(true);
+        final Document document = DocumentBuilder.configure().build();
+        final WorkflowManager workflowManager = new WorkflowManager(document.getApplication(), configuration);
+        assertNull(workflowManager.get("test-workflow"));
+
+        // The failure is remembered, so the workflow is not loaded again until the workflows are reloaded
+        Files.copy(Paths.get(WorkflowDirectoryProvider.getWorkflowDirectory("workflow-manager-test"), "test-workflow.yaml"),
+                   workflowFile, StandardCopyOption.REPLACE_EXISTING);
+        assertNull(workflowManager.get("test-workflow"));
+
+        workflowManager.reloadWorkflows();
+        assertNotNull(workflowManager.get("test-workflow"));
+    }
+
+    private static WorkflowWorkerConfiguration createConfiguration(final String workflowDirectory, final int workflowLoadThreads)
+    {
+        final WorkflowWorkerConfiguration configuration = new WorkflowWorkerConfiguration();
+        configuration.setWorkflowsDirectory(workflowDirectory);
+        configuration.setWorkflowLoadThreads(workflowLoadThreads);
+        return configuration;
+    }
+
+    private static ScriptEngine createScriptEngine()
+    {
+        return GraalJSScriptEngine.create(
                 null,
                 Context.newBuilder("js")
                     .allowExperimentalOptions(true) // Needed for loading from classpath
                     .allowHostAccess(HostAccess.ALL) // Allow JS access to public Java methods/members
                     .allowHostClassLookup(s -> true) // Allow JS access to public Java classes
                     .option("js.load-from-classpath", "true"));
+    }
+
+    private static Invocable installScript(final Scripts scripts, final String name, final String storageReference)
+        throws IOException, ScriptException
+    {
+        final Script script = scripts.add();
+        script.setName(name);
+        script.setScriptByReference(storageReference, ScriptEngineType.GRAAL_JS);
+        script.install();
+
+        final ScriptEngine scriptEngine = createScriptEngine();
+        scriptEngine.put("thisScript", script);
+        scriptEngine.eval(script.getScript());
+        return (Invocable) scriptEngine;
+    }
+
+    private static void executeOnBeforeProcessDocumentScript(String workflowScript, Document document)
+    {
+        final ScriptEngine scriptEngine = createScriptEngine();
         final Invocable invocable = (Invocable) scriptEngine;
         try {
             scriptEngine.eval(workflowScript);
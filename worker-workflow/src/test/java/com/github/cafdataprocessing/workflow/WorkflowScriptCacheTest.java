@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017-2024 Open Text.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cafdataprocessing.workflow;
+
+import com.github.cafdataprocessing.workflow.model.Workflow;
+import com.hpe.caf.worker.document.model.Document;
+import com.hpe.caf.worker.document.testing.DocumentBuilder;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class WorkflowScriptCacheTest
+{
+    private static final String COUNTING_SCRIPT = "var count = 0;\n"
+        + "function routeCachedTask(rootDocument) { rootDocument.getField('COUNT').set(String(++count)); }";
+
+    @Test
+    public void contextsReusedAndClosedOnEvictionTest() throws Exception
+    {
+        final Workflow firstWorkflow = createWorkflow(COUNTING_SCRIPT);
+        final Workflow secondWorkflow = createWorkflow(COUNTING_SCRIPT);
+
+        try (final WorkflowScriptCache workflowScriptCache = new WorkflowScriptCache(1, 1)) {
+            assertEquals("1", processDocument(workflowScriptCache, firstWorkflow));
+            // The idle context of the workflow is used again
+            assertEquals("2", processDocument(workflowScriptCache, firstWorkflow));
+            // Only one workflow is kept, so the first workflow is evicted and its context is closed
+            assertEquals("1", processDocument(workflowScriptCache, secondWorkflow));
+            assertEquals("1", processDocument(workflowScriptCache, firstWorkflow));
+        }
+    }
+
+    @Test
+    public void conditionFailureRaisesOnErrorTest(@TempDir final Path workflowsDirectory) throws Exception
+    {
+        // The condition fails the first time that it is evaluated, so the document is routed when onError routes it again
+        Files.write(workflowsDirectory.resolve("test-workflow.yaml"), String.join("\n",
+            "actions:",
+            "  - name: first",
+            "    conditionFunction: |",
+            "      var calls = 0;",
+            "      function condition(document, args) {",
+            "        if (calls++ === 0) {",
+            "          throw new Error('Condition failed');",
+            "        }",
+            "        return true;",
+            "      }",
+            "  - name: second",
+            "").getBytes(StandardCharsets.UTF_8));
+
+        final Document document = DocumentBuilder.configure().withFields()
+            .addFieldValue("CAF_WORKFLOW_SETTINGS", "{}")
+            .documentBuilder().build();
+        final Workflow workflow = new WorkflowManager(document.getApplication(), workflowsDirectory.toString(), null)
+            .get("test-workflow");
+
+        try (final WorkflowScriptCache workflowScriptCache = new WorkflowScriptCache()) {
+            workflowScriptCache.processDocument(workflow, document);
+        }
+
+        assertTrue(document.getFailures().stream().anyMatch(failure -> "UNHANDLED_ERROR".equals(failure.getFailureId())));
+        assertEquals("first", document.getField("CAF_WORKFLOW_ACTION").getStringValues().get(0));
+        assertEquals("first-in", document.getTask().getResponse().getSuccessQueue().getName());
+    }
+
+    private static Workflow createWorkflow(final String workflowScript)
+    {
+        final Workflow workflow = new Workflow();
+        workflow.setWorkflowScript(workflowScript);
+        return workflow;
+    }
+
+    private static String processDocument(final WorkflowScriptCache workflowScriptCache, final Workflow workflow)
+        throws Exception
+    {
+        final Document document = DocumentBuilder.configure().build();
+        workflowScriptCache.processDocument(workflow, document);
+        return document.getField("COUNT").getStringValues().get(0);
+    }
+}
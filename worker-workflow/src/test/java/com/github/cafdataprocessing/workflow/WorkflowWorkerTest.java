@@ -24,12 +24,14 @@ import com.hpe.caf.worker.document.model.Document;
 import com.hpe.caf.worker.document.testing.CustomDataBuilder;
 import com.hpe.caf.worker.document.testing.DocumentBuilder;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.mockito.Mockito.mock;
@@ -76,6 +78,11 @@ public class WorkflowWorkerTest
         }
     }
 
+    @AfterEach
+    public void after() throws IOException {
+        workflowWorker.close();
+    }
+
     @Test
     public void validateAllActionsTest() throws Exception {
 